@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Format_Bdoc
+ * (see https://github.com/GateNLP/gateplugin-Format_Bdoc).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.format.bdoc.benchmarks;
+
+import gate.lib.basicdocument.BdocDocument;
+import gate.lib.basicdocument.docformats.Format;
+import gate.lib.basicdocument.docformats.Loader;
+import gate.lib.basicdocument.docformats.Saver;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmarks for saving and loading BdocDocuments in all formats.
+ *
+ * Each benchmark goes through Saver/Loader with an in-memory stream, so
+ * the numbers include the FormatSupport implementation and, if enabled,
+ * gzip compression but no file system access.
+ * <p>
+ * To run all benchmarks with the default parameters and the GC profiler
+ * (which reports the allocation rate):
+ * <pre>
+ * {@code
+ * mvn -Pbenchmarks test-compile exec:exec
+ * }
+ * </pre>
+ * Parameters can be overridden using the JMH command line, e.g.:
+ * <pre>
+ * {@code
+ * mvn -Pbenchmarks test-compile exec:exec -Djmh.args="FormatSupportBenchmark -prof gc -p format=MSGPACK,JSON_MAP -p textLength=1000000"
+ * }
+ * </pre>
+ *
+ * @author Johann Petrak
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2G", "-Xmx2G"})
+public class FormatSupportBenchmark {
+
+  /**
+   * The serialization format, one of the names of the Format enum.
+   */
+  @Param({"JSON_MAP", "YAML_MAP", "MSGPACK", "MSGPACK_SM3", "MSGPACK_SM4"})
+  public String format;
+
+  /**
+   * If the serialization should be gzip compressed.
+   */
+  @Param({"false", "true"})
+  public boolean gzipped;
+
+  /**
+   * Number of characters in the document text.
+   */
+  @Param({"100000"})
+  public int textLength;
+
+  /**
+   * Number of annotations per 100 characters.
+   */
+  @Param({"20"})
+  public int annsPer100Chars;
+
+  /**
+   * Number of features per annotation.
+   */
+  @Param({"4"})
+  public int nFeatures;
+
+  /**
+   * Number of distinct values for each feature.
+   */
+  @Param({"100"})
+  public int featureCardinality;
+
+  private Format fmt;
+  private BdocDocument bdoc;
+  private byte[] serialized;
+
+  /**
+   * Create the document and its serialization once per trial.
+   */
+  @Setup(Level.Trial)
+  public void setup() {
+    fmt = Format.valueOf(format);
+    bdoc = SyntheticBdoc.create(textLength, annsPer100Chars, nFeatures, featureCardinality);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    new Saver().to(baos).format(fmt).gzipped(gzipped).save(bdoc);
+    serialized = baos.toByteArray();
+  }
+
+  /**
+   * Benchmark saving the document.
+   *
+   * @return the stream the document was written to
+   */
+  @Benchmark
+  public ByteArrayOutputStream save() {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(serialized.length);
+    new Saver().to(baos).format(fmt).gzipped(gzipped).save(bdoc);
+    return baos;
+  }
+
+  /**
+   * Benchmark loading the document.
+   *
+   * @return the loaded document
+   */
+  @Benchmark
+  public BdocDocument load() {
+    return new Loader().from(new ByteArrayInputStream(serialized)).
+            format(fmt).gzipped(gzipped).load_bdoc();
+  }
+
+  /**
+   * Run all benchmarks in this class with the GC profiler.
+   *
+   * @param args not used
+   * @throws RunnerException if the benchmark fails
+   */
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+            .include(FormatSupportBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build();
+    new Runner(opt).run();
+  }
+
+}
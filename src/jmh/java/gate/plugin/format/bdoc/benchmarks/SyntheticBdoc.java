@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Format_Bdoc
+ * (see https://github.com/GateNLP/gateplugin-Format_Bdoc).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.format.bdoc.benchmarks;
+
+import gate.lib.basicdocument.BdocAnnotation;
+import gate.lib.basicdocument.BdocAnnotationSet;
+import gate.lib.basicdocument.BdocDocument;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Create synthetic BdocDocument instances for benchmarking.
+ *
+ * The documents are created from a fixed random seed so that repeated
+ * benchmark runs see exactly the same data.
+ *
+ * @author Johann Petrak
+ */
+public class SyntheticBdoc {
+
+  private static final long SEED = 4711L;
+
+  /**
+   * Create a synthetic document.
+   *
+   * The text consists of random lower case words separated by single spaces.
+   * Annotations are placed over randomly chosen words in the default set.
+   * Every annotation gets the same number of features, half of them with
+   * String values and half with Integer values, each chosen from a
+   * vocabulary of the given cardinality.
+   *
+   * @param textLength number of characters in the text
+   * @param annsPer100Chars annotation density: number of annotations per 100
+   * characters of text
+   * @param nFeatures number of features per annotation
+   * @param featureCardinality number of different values per feature
+   * @return the BdocDocument
+   */
+  public static BdocDocument create(int textLength, int annsPer100Chars,
+          int nFeatures, int featureCardinality) {
+    Random rnd = new Random(SEED);
+    StringBuilder sb = new StringBuilder(textLength);
+    ArrayList<int[]> words = new ArrayList<>();
+    while(sb.length() < textLength) {
+      int wlen = 1 + rnd.nextInt(10);
+      int start = sb.length();
+      for(int i = 0; i < wlen && sb.length() < textLength; i++) {
+        sb.append((char)('a' + rnd.nextInt(26)));
+      }
+      words.add(new int[]{start, sb.length()});
+      if(sb.length() < textLength) {
+        sb.append(' ');
+      }
+    }
+    BdocDocument bdoc = new BdocDocument();
+    bdoc.text = sb.toString();
+    bdoc.name = "synthetic-"+textLength;
+    bdoc.features = new HashMap<>();
+    bdoc.features.put("generator", SyntheticBdoc.class.getName());
+    bdoc.features.put("textLength", textLength);
+
+    int nanns = (int)((long)textLength * annsPer100Chars / 100);
+    BdocAnnotationSet annset = new BdocAnnotationSet();
+    annset.name = "";
+    annset.annotations = new ArrayList<>(nanns);
+    for(int id = 0; id < nanns; id++) {
+      int[] word = words.get(rnd.nextInt(words.size()));
+      BdocAnnotation ann = new BdocAnnotation();
+      ann.id = id;
+      ann.type = (id % 10 == 0) ? "Sentence" : "Token";
+      ann.start = word[0];
+      ann.end = word[1];
+      Map<String, Object> fm = new HashMap<>();
+      for(int f = 0; f < nFeatures; f++) {
+        int val = rnd.nextInt(featureCardinality);
+        if(f % 2 == 0) {
+          fm.put("feature"+f, "value"+val);
+        } else {
+          fm.put("feature"+f, val);
+        }
+      }
+      ann.features = fm;
+      annset.annotations.add(ann);
+    }
+    annset.next_annid = nanns;
+    bdoc.annotation_sets = new HashMap<>();
+    bdoc.annotation_sets.put(annset.name, annset);
+    return bdoc;
+  }
+
+}
@@ -87,8 +87,9 @@ public class BdocAnnotation {
    */
   @SuppressWarnings("unchecked")
   public BdocAnnotation(Map<String, Object> annmap) {
-    features = (Map<String, Object>) annmap.get("features");
-    type = (String) annmap.get("type");
+    features = StringCanonicalizer.canonicalizeKeys(
+            (Map<String, Object>) annmap.get("features"));
+    type = StringCanonicalizer.canonicalize((String) annmap.get("type"));
     id = (Integer)annmap.get("id");
     start = (int)annmap.get("start");
     end = (int)annmap.get("end");
@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Format_Bdoc
+ * (see https://github.com/GateNLP/gateplugin-Format_Bdoc).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gate.lib.basicdocument;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Columnar representation of the annotations in an annotation set.
+ *
+ * Instead of one BdocAnnotation object per annotation, this stores start
+ * offsets, end offsets and ids in int arrays, and the types as indices into
+ * a dictionary of the distinct type names. The features are not kept as
+ * one map per annotation: the feature names are stored as indices into a
+ * dictionary of the distinct feature names and the names and values of all
+ * annotations are stored one after the other in two shared arrays. The
+ * feature arrays are only allocated once the first annotation with features
+ * is added. getFeatures(int) creates a new map on every call.
+ * <p>
+ * Annotations can only be added, the i-th annotation is the i-th one added.
+ *
+ * @author Johann Petrak
+ */
+public class BdocAnnotationColumns {
+
+  /**
+   * Stored in the ids column for annotations which do not have an id.
+   */
+  private static final int NO_ID = Integer.MIN_VALUE;
+
+  private int size = 0;
+  private int[] starts;
+  private int[] ends;
+  private int[] ids;
+  private int[] typeIndices;
+  private final List<String> typeNames = new ArrayList<>();
+  private final Map<String, Integer> typeName2Index = new HashMap<>();
+  // per annotation: first index into featureKeys/featureValues and number
+  // of features plus one, 0 if the annotation has a null feature map
+  private int[] featureStarts = null;
+  private int[] featureCounts = null;
+  private int nfeatures = 0;
+  private int[] featureKeys = null;
+  private Object[] featureValues = null;
+  private final List<String> featureNames = new ArrayList<>();
+  private final Map<String, Integer> featureName2Index = new HashMap<>();
+
+  /**
+   * Create empty columns.
+   */
+  public BdocAnnotationColumns() {
+    this(16);
+  }
+
+  /**
+   * Create empty columns with space for the given number of annotations.
+   *
+   * @param capacity the initial capacity
+   */
+  public BdocAnnotationColumns(int capacity) {
+    capacity = Math.max(capacity, 1);
+    starts = new int[capacity];
+    ends = new int[capacity];
+    ids = new int[capacity];
+    typeIndices = new int[capacity];
+  }
+
+  /**
+   * Create the columns for a list of annotations.
+   *
+   * @param annotations the annotations
+   * @return the columns containing the same annotations in the same order
+   */
+  public static BdocAnnotationColumns fromAnnotations(List<BdocAnnotation> annotations) {
+    BdocAnnotationColumns ret = new BdocAnnotationColumns(annotations.size());
+    for(BdocAnnotation ann : annotations) {
+      ret.add(ann);
+    }
+    return ret;
+  }
+
+  /**
+   * Add an annotation.
+   *
+   * @param type annotation type
+   * @param id annotation id, may be null
+   * @param start start offset
+   * @param end end offset
+   * @param fm annotation features, may be null, the map is not retained
+   */
+  public void add(String type, Integer id, int start, int end, Map<String, Object> fm) {
+    if(size == starts.length) {
+      int newCapacity = size + (size >> 1) + 1;
+      starts = Arrays.copyOf(starts, newCapacity);
+      ends = Arrays.copyOf(ends, newCapacity);
+      ids = Arrays.copyOf(ids, newCapacity);
+      typeIndices = Arrays.copyOf(typeIndices, newCapacity);
+      if(featureStarts != null) {
+        featureStarts = Arrays.copyOf(featureStarts, newCapacity);
+        featureCounts = Arrays.copyOf(featureCounts, newCapacity);
+      }
+    }
+    starts[size] = start;
+    ends[size] = end;
+    ids[size] = (id == null) ? NO_ID : id;
+    Integer typeIndex = typeName2Index.get(type);
+    if(typeIndex == null) {
+      typeIndex = typeNames.size();
+      typeNames.add(type);
+      typeName2Index.put(type, typeIndex);
+    }
+    typeIndices[size] = typeIndex;
+    if(fm != null) {
+      addFeatures(fm);
+    }
+    size++;
+  }
+
+  private void addFeatures(Map<String, Object> fm) {
+    if(featureStarts == null) {
+      featureStarts = new int[starts.length];
+      featureCounts = new int[starts.length];
+      featureKeys = new int[Math.max(fm.size(), 16)];
+      featureValues = new Object[featureKeys.length];
+    }
+    int needed = nfeatures + fm.size();
+    if(needed > featureKeys.length) {
+      int newCapacity = Math.max(needed, featureKeys.length + (featureKeys.length >> 1));
+      featureKeys = Arrays.copyOf(featureKeys, newCapacity);
+      featureValues = Arrays.copyOf(featureValues, newCapacity);
+    }
+    featureStarts[size] = nfeatures;
+    featureCounts[size] = fm.size() + 1;
+    for(Map.Entry<String, Object> e : fm.entrySet()) {
+      Integer nameIndex = featureName2Index.get(e.getKey());
+      if(nameIndex == null) {
+        nameIndex = featureNames.size();
+        featureNames.add(e.getKey());
+        featureName2Index.put(e.getKey(), nameIndex);
+      }
+      featureKeys[nfeatures] = nameIndex;
+      featureValues[nfeatures] = e.getValue();
+      nfeatures++;
+    }
+  }
+
+  /**
+   * Add an annotation.
+   *
+   * @param ann the annotation to add, the instance is not retained
+   */
+  public void add(BdocAnnotation ann) {
+    add(ann.type, ann.id, ann.start, ann.end, ann.features);
+  }
+
+  /**
+   * Number of annotations.
+   *
+   * @return number of annotations
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Start offset of the annotation at the index.
+   *
+   * @param i index
+   * @return start offset
+   */
+  public int getStart(int i) {
+    return starts[i];
+  }
+
+  /**
+   * End offset of the annotation at the index.
+   *
+   * @param i index
+   * @return end offset
+   */
+  public int getEnd(int i) {
+    return ends[i];
+  }
+
+  /**
+   * Id of the annotation at the index.
+   *
+   * @param i index
+   * @return id or null if the annotation does not have an id
+   */
+  public Integer getId(int i) {
+    return (ids[i] == NO_ID) ? null : ids[i];
+  }
+
+  /**
+   * Type of the annotation at the index.
+   *
+   * @param i index
+   * @return type
+   */
+  public String getType(int i) {
+    return typeNames.get(typeIndices[i]);
+  }
+
+  /**
+   * Features of the annotation at the index.
+   *
+   * @param i index
+   * @return new feature map with the features in the order they were added, 
+   * or null if the annotation was added with a null feature map
+   */
+  public Map<String, Object> getFeatures(int i) {
+    if(featureCounts == null || featureCounts[i] == 0) {
+      return null;
+    }
+    int from = featureStarts[i];
+    int to = from + featureCounts[i] - 1;
+    Map<String, Object> fm = new LinkedHashMap<>((to - from) * 4 / 3 + 1);
+    for(int k = from; k < to; k++) {
+      fm.put(featureNames.get(featureKeys[k]), featureValues[k]);
+    }
+    return fm;
+  }
+
+  /**
+   * The array of start offsets.
+   *
+   * This is the array used for storing the offsets, so it can be used to
+   * convert offsets in place. Only the first size() elements are used.
+   *
+   * @return array of start offsets
+   */
+  public int[] getStarts() {
+    return starts;
+  }
+
+  /**
+   * The array of end offsets.
+   *
+   * This is the array used for storing the offsets, so it can be used to
+   * convert offsets in place. Only the first size() elements are used.
+   *
+   * @return array of end offsets
+   */
+  public int[] getEnds() {
+    return ends;
+  }
+
+  /**
+   * Create a BdocAnnotation for the annotation at the index.
+   *
+   * @param i index
+   * @return new BdocAnnotation instance
+   */
+  public BdocAnnotation getAnnotation(int i) {
+    BdocAnnotation ann = new BdocAnnotation();
+    ann.type = getType(i);
+    ann.id = getId(i);
+    ann.start = starts[i];
+    ann.end = ends[i];
+    ann.features = getFeatures(i);
+    return ann;
+  }
+
+  /**
+   * Create the list of BdocAnnotation instances for all annotations.
+   *
+   * @return list of new BdocAnnotation instances
+   */
+  public List<BdocAnnotation> toAnnotations() {
+    List<BdocAnnotation> ret = new ArrayList<>(size);
+    for(int i = 0; i < size; i++) {
+      ret.add(getAnnotation(i));
+    }
+    return ret;
+  }
+
+}
@@ -77,6 +77,86 @@ public class BdocAnnotationSet {
    * Contains the next id to use for new annotations.
    */
   public Integer next_annid; 
+  
+  /**
+   * The columnar representation of the annotations, if used. 
+   * If this is not null, the annotations field is null. 
+   */
+  private BdocAnnotationColumns columns = null;
+  
+  /**
+   * Create a set which uses the columnar representation.
+   * 
+   * @param name set name
+   * @param columns the annotations
+   * @param next_annid the next annotation id
+   * @return the set
+   */
+  public static BdocAnnotationSet fromColumns(String name, 
+          BdocAnnotationColumns columns, Integer next_annid) {
+    BdocAnnotationSet ret = new BdocAnnotationSet();
+    ret.name = name;
+    ret.columns = columns;
+    ret.next_annid = next_annid;
+    return ret;
+  }
+  
+  /**
+   * Return the columnar representation of the annotations.
+   * 
+   * @return the columns or null if the list of annotations is used
+   */
+  public BdocAnnotationColumns columns() {
+    return columns;
+  }
+  
+  /**
+   * Convert to the columnar representation. 
+   * 
+   * After this, the annotations field is null and the annotations are only
+   * available through columns(). 
+   * 
+   * @return this set
+   */
+  public BdocAnnotationSet toColumns() {
+    if(columns == null) {
+      columns = BdocAnnotationColumns.fromAnnotations(
+              (annotations == null) ? new ArrayList<>() : annotations);
+      annotations = null;
+    }
+    return this;
+  }
+  
+  /**
+   * Convert to the list representation.
+   * 
+   * After this, the annotations are in the annotations field and 
+   * columns() returns null.
+   * 
+   * @return this set
+   */
+  public BdocAnnotationSet toList() {
+    if(columns != null) {
+      annotations = columns.toAnnotations();
+      columns = null;
+    }
+    return this;
+  }
+  
+  /**
+   * Return the annotations as a list, no matter which representation is used.
+   * 
+   * For the columnar representation, a new list of new BdocAnnotation 
+   * instances is created.
+   * 
+   * @return list of annotations
+   */
+  public List<BdocAnnotation> annotationList() {
+    if(columns != null) {
+      return columns.toAnnotations();
+    }
+    return annotations;
+  }
 
   
   /**
@@ -86,7 +166,7 @@ public class BdocAnnotationSet {
    */
   public Map<String, Object> toMap() {
     Map<String, Object> map = new HashMap<>();
-    map.put("annotations", this.annotations);
+    map.put("annotations", annotationList());
     map.put("name", this.name);
     map.put("next_annid", this.next_annid);
     return map;
@@ -20,6 +20,7 @@
 
 package gate.lib.basicdocument;
 
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 import gate.Document;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -36,8 +37,12 @@ import java.util.Set;
  * this representation also corresponds to the external JSON representation
  * of GATE documents in Python. 
  * 
+ * The offset type is serialized before the annotation sets, so that 
+ * annotations can get added while a document is read.
+ * 
  * @author Johann Petrak johann.petrak@gmail.com
  */
+@JsonPropertyOrder({"features", "text", "name", "offset_type", "annotation_sets"})
 public class BdocDocument
 {
   
@@ -111,6 +116,17 @@ public class BdocDocument
    * @param newtype the target offset type
    */
   public void fixupOffsets(String newtype) {
+    fixupOffsets(newtype, null);
+  }
+  
+  /**
+   * Change all the annotation offsets to the required type using the mapper.
+   * 
+   * @param newtype the target offset type
+   * @param om the offset mapper for the text of this document, if null, 
+   * an offset mapper is created if needed
+   */
+  public void fixupOffsets(String newtype, OffsetMapper om) {
     if(offset_type.equals(newtype)) {
       return;
     }
@@ -121,17 +137,15 @@ public class BdocDocument
       throw new RuntimeException("Fixing offsets only possible if the text is known");
     }
     // create the offset mapper
-    OffsetMapper om = new OffsetMapper(this.text);
+    if(om == null) {
+      om = new OffsetMapper(this.text);
+    }
     // go through all annotation sets and all annotations and fix them
     for(BdocAnnotationSet annset : annotation_sets.values()) {
-      for(BdocAnnotation ann : annset.annotations) {
-        if("p".equals(newtype)) {
-          ann.start = om.convertToPython(ann.start);
-          ann.end = om.convertToPython(ann.end);
-        } else {
-          ann.start = om.convertToJava(ann.start);
-          ann.end = om.convertToJava(ann.end);          
-        }
+      if("p".equals(newtype)) {
+        om.convertToPython(annset);
+      } else {
+        om.convertToJava(annset);
       }
     }
     offset_type = newtype;
@@ -146,7 +160,7 @@ public class BdocDocument
    * instance.
    */
   public Document toGateDocument() {
-    return new GateDocumentUpdater(this.text).fromBdoc(this);
+    return new GateDocumentUpdater(this.text).bulkLoad(true).fromBdoc(this);
   }
   
   public Map<String, Object> toMap() {
@@ -195,7 +209,7 @@ public class BdocDocument
         if(setspec.get(1) == null) {
           // include everything from that set
           Map<String, Object> smap = new HashMap<>();
-          smap.put("annotations", bset.annotations); 
+          smap.put("annotations", bset.annotationList()); 
           smap.put("name", bset.name);
           smap.put("next_annid", bset.next_annid);
           ass.put(setname, smap);
@@ -213,7 +227,7 @@ public class BdocDocument
           smap.put("next_annid", bset.next_annid);
           // now filter the annotations by type
           List<BdocAnnotation> filteredanns = new ArrayList<>();
-          for(BdocAnnotation ann : bset.annotations) {
+          for(BdocAnnotation ann : bset.annotationList()) {
             if(anntypes.contains(ann.type)) {
               filteredanns.add(ann);
             }
@@ -31,10 +31,15 @@ import java.io.File;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Class for building a JsonDocument.
@@ -49,11 +54,13 @@ import java.util.HashSet;
 public class BdocDocumentBuilder {
   
   String text;
+  Document sourceDocument = null;
   HashMap<String,Set<Annotation>> knownSets = new HashMap<>();
   Set<String> includedSetNames =  new HashSet<>();
   HashMap<String,Integer> nextAnnotationIds = new HashMap<>();
   HashMap<String, Object> includedFeatures = new HashMap<>();
   boolean includePlaceholderSets = false;
+  ExecutorService executor = null;
   String offset_type = "j";
   String name = "";
   int nextAnnId = 1;
@@ -71,6 +78,7 @@ public class BdocDocumentBuilder {
   public BdocDocumentBuilder fromGate(Document doc) {
     // TODO: for now check that Document is a SimpleDocument
     this.text = doc.getContent().toString(); 
+    this.sourceDocument = doc;
     this.name = doc.getName();
     if(! (doc instanceof DocumentImpl)) {
       throw new GateRuntimeException("Cannot build Bdoc document from something that is not a gate.corpora.DocumentImpl");
@@ -222,6 +230,24 @@ public class BdocDocumentBuilder {
     return this;
   }
   
+  /**
+   * Build the annotation sets in parallel.
+   * 
+   * If an executor is set, buildBdoc() creates each annotation set, 
+   * including the conversion of its offsets, in a separate task on the 
+   * executor, e.g. ForkJoinPool.commonPool(). The result is the same as 
+   * when building the sets one after the other, which is the default.
+   * The executor is not shut down by the builder.
+   * 
+   * @param executor the executor to use or null to build the sets 
+   * sequentially
+   * @return modified BdocDocumentBuilder
+   */
+  public BdocDocumentBuilder setExecutor(ExecutorService executor) {
+    this.executor = executor;
+    return this;
+  }
+  
   /**
    * Make the JsonDocument use java offsets (the default). 
    * @return modified BdocDocumentBuilder
@@ -244,11 +270,134 @@ public class BdocDocumentBuilder {
     return this;
   }
   
+  /**
+   * Return the text of the document to build.
+   * 
+   * @return the document text
+   */
+  public String getText() {
+    return text;
+  }
+  
+  /**
+   * Return the name of the document to build.
+   * 
+   * @return the document name
+   */
+  public String getName() {
+    return name;
+  }
+  
+  /**
+   * Return the offset type the annotations of the document will use.
+   * 
+   * @return "j" for Java offsets, "p" for Python offsets
+   */
+  public String getOffsetType() {
+    return offset_type;
+  }
+  
+  /**
+   * Return the document features to include. 
+   * 
+   * @return the map of included document features or null if there are none
+   */
+  public Map<String, Object> getFeatures() {
+    if(includedFeatures.size() > 0) {
+      return includedFeatures;
+    }
+    return null;
+  }
+  
+  /**
+   * Return the names of all annotation sets which will be in the document.
+   * 
+   * This includes the names of placeholder sets, if those are included.
+   * If no annotation sets are known at all, null is returned.
+   * 
+   * @return list of annotation set names or null
+   */
+  public List<String> getAnnotationSetNames() {
+    if(knownSets.isEmpty()) {
+      return null;
+    }
+    List<String> ret = new ArrayList<>();
+    for(String setname : knownSets.keySet()) {
+      if(includePlaceholderSets || includedSetNames.contains(setname)) {
+        ret.add(setname);
+      }
+    }
+    return ret;
+  }
+  
+  /**
+   * Return the GATE annotations to include for the annotation set name.
+   * 
+   * The annotations are returned as they are, with Java offsets and with
+   * all their features. For a placeholder set, an empty collection is 
+   * returned.
+   * 
+   * @param setname name of the annotation set as returned by 
+   * getAnnotationSetNames()
+   * @return the annotations to include
+   */
+  public Collection<Annotation> getAnnotations(String setname) {
+    if(!includedSetNames.contains(setname) || !knownSets.containsKey(setname)) {
+      return Collections.emptyList();
+    }
+    return knownSets.get(setname);
+  }
+  
+  /**
+   * Return the next annotation id to use for the annotation set name.
+   * 
+   * @param setname name of the annotation set as returned by 
+   * getAnnotationSetNames()
+   * @param next_annid the maximum annotation id found in the set plus one,
+   * or zero if the set is empty
+   * @return the next annotation id to store for the set
+   */
+  public int getNextAnnotationId(String setname, int next_annid) {
+    if(!includedSetNames.contains(setname)) {
+      return nextAnnId;
+    }
+    if(nextAnnotationIds.containsKey(setname)) {
+      return Math.max(next_annid, nextAnnotationIds.get(setname));
+    }
+    return next_annid;
+  }
+  
+  /**
+   * Return the offset mapper to convert the Java offsets of GATE annotations.
+   * 
+   * If the builder was created from a GATE document, the mapper is shared
+   * through the OffsetMapperCache.
+   * 
+   * @return an offset mapper for the text if Python offsets are used, null
+   * if Java offsets are used
+   */
+  public OffsetMapper getOffsetMapper() {
+    if("j".equals(offset_type)) {
+      return null;
+    }
+    if(text == null) {
+      throw new GateRuntimeException("Fixing offsets only possible if the text is known");
+    }
+    if(sourceDocument != null) {
+      return OffsetMapperCache.get(sourceDocument, text);
+    }
+    return new OffsetMapper(text);
+  }
+  
   /**
    * Given all the info accumulated, build a JsonDocument and return it.
    * 
    * This adds a BdocDocument instance with all the information added
    * so far. 
+   * <p>
+   * For just saving the document, use Saver.save(BdocDocumentBuilder)
+   * instead, which writes the JSON or MsgPack representation directly
+   * from the GATE annotations without creating the BdocDocument first. 
    * 
    * @return the BdocDocument containing all the information added so far
    */
@@ -256,50 +405,90 @@ public class BdocDocumentBuilder {
     BdocDocument ret = new BdocDocument();
     ret.text = text;
     ret.name = name;
-    if(includedFeatures.size() > 0) {
-      ret.features = includedFeatures;
+    ret.features = getFeatures();
+    List<String> setnames = getAnnotationSetNames();
+    // in parallel mode, the offsets of each set get converted in the same
+    // task which creates the set
+    OffsetMapper mapper = null;
+    if(executor != null && setnames != null && !setnames.isEmpty()) {
+      mapper = getOffsetMapper();
     }
-    if(knownSets.size() > 0) {
+    if(setnames != null) {
       HashMap<String, BdocAnnotationSet> annotation_sets = new HashMap<>();
-      for(String name : knownSets.keySet()) {
-        if(!includedSetNames.contains(name)) {
-          // if a set should not get added, we either completely ignore it, or if
-          // includePlaceholderSets is true, we add an empty set with that name which
-          // has the next annotation id set to the one from the gate document
-          if (includePlaceholderSets) {
-            BdocAnnotationSet annset = new BdocAnnotationSet();
-            annset.name = name;
-            annset.annotations = new ArrayList<>();
-            annset.next_annid = nextAnnId;
-            annotation_sets.put(annset.name, annset);
-          }
-          continue;
+      if(executor == null) {
+        for(String setname : setnames) {
+          annotation_sets.put(setname, buildAnnotationSet(setname, null));
         }
-        BdocAnnotationSet annset = new BdocAnnotationSet();
-        annset.name = name;
-        annset.annotations = new ArrayList<>();
-        int next_annid = 0;
-        for (Annotation ann : knownSets.get(name)) {
-          BdocAnnotation bdocann = BdocAnnotation.fromGateAnnotation(ann);
-          if(bdocann.id >= next_annid) {
-            next_annid = bdocann.id + 1;
-          }
-          annset.annotations.add(bdocann);
+      } else {
+        List<Future<BdocAnnotationSet>> futures = new ArrayList<>(setnames.size());
+        final OffsetMapper taskMapper = mapper;
+        for(String setname : setnames) {
+          futures.add(executor.submit(() -> buildAnnotationSet(setname, taskMapper)));
         }
-        if(nextAnnotationIds.containsKey(name)) {
-          annset.next_annid = Math.max(next_annid, nextAnnotationIds.get(name));
-        } else {
-          annset.next_annid = next_annid;
+        // add in the same order as the sequential path, so the resulting
+        // map is the same
+        for(int i = 0; i < setnames.size(); i++) {
+          annotation_sets.put(setnames.get(i), getResult(futures.get(i)));
         }
-        annotation_sets.put(annset.name, annset);
-      }     
+      }
       ret.annotation_sets = annotation_sets;
     }
     // do any offset fixup, if necessary
-    ret.fixupOffsets(offset_type);
+    if(mapper != null) {
+      ret.offset_type = offset_type;
+    } else if("j".equals(offset_type) || text == null || ret.annotation_sets == null) {
+      ret.fixupOffsets(offset_type);
+    } else {
+      ret.fixupOffsets(offset_type, getOffsetMapper());
+    }
     return ret;
   }
   
+  /**
+   * Create the BdocAnnotationSet for one annotation set name. 
+   * 
+   * If a set should not get added, it is either not in the set names, or if
+   * includePlaceholderSets is true, we add an empty set with that name which
+   * has the next annotation id set to the one from the gate document.
+   * 
+   * @param setname the annotation set name
+   * @param mapper if not null, used to convert the offsets to Python
+   * @return the annotation set
+   */
+  private BdocAnnotationSet buildAnnotationSet(String setname, OffsetMapper mapper) {
+    Collection<Annotation> anns = getAnnotations(setname);
+    BdocAnnotationSet annset = new BdocAnnotationSet();
+    annset.name = setname;
+    annset.annotations = new ArrayList<>(anns.size());
+    int next_annid = 0;
+    for (Annotation ann : anns) {
+      BdocAnnotation bdocann = BdocAnnotation.fromGateAnnotation(ann);
+      if(bdocann.id >= next_annid) {
+        next_annid = bdocann.id + 1;
+      }
+      annset.annotations.add(bdocann);
+    }
+    annset.next_annid = getNextAnnotationId(setname, next_annid);
+    if(mapper != null) {
+      mapper.convertToPython(annset);
+    }
+    return annset;
+  }
+  
+  private BdocAnnotationSet getResult(Future<BdocAnnotationSet> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new GateRuntimeException("Interrupted while building annotation sets", ex);
+    } catch (ExecutionException ex) {
+      if(ex.getCause() instanceof RuntimeException) {
+        throw (RuntimeException)ex.getCause();
+      }
+      throw new GateRuntimeException("Could not build annotation set", ex.getCause());
+    }
+  }
+  
   
   /**
    * Store the BdocDocument to a file.
@@ -307,8 +496,7 @@ public class BdocDocumentBuilder {
    * @param path  where to store
    */
   public void toJson(File path) {
-    BdocDocument bdoc = buildBdoc();
-    new Saver().format(Format.JSON_MAP).to(path).save(bdoc);
+    new Saver().format(Format.JSON_MAP).to(path).save(this);
   }
   
   /**
@@ -317,8 +505,7 @@ public class BdocDocumentBuilder {
    * @param path  where to store
    */
   public void toJson(String path) {
-    BdocDocument bdoc = buildBdoc();
-    new Saver().format(Format.JSON_MAP).to(new File(path)).save(bdoc);
+    new Saver().format(Format.JSON_MAP).to(new File(path)).save(this);
   }
   
   /**
@@ -328,8 +515,7 @@ public class BdocDocumentBuilder {
    * @return JSON String
    */
   public String toJsonString() {
-    BdocDocument bdoc = buildBdoc();
-    return new Saver().format(Format.JSON_MAP).asString().save(bdoc);
+    return new Saver().format(Format.JSON_MAP).asString().save(this);
   }
   
   /**
@@ -338,8 +524,7 @@ public class BdocDocumentBuilder {
    * @param os stream to write to
    */
   public void toJson(OutputStream os) {
-    BdocDocument bdoc = buildBdoc();
-    new Saver().format(Format.JSON_MAP).to(os).save(bdoc);
+    new Saver().format(Format.JSON_MAP).to(os).save(this);
   }
     
 }
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Format_Bdoc
+ * (see https://github.com/GateNLP/gateplugin-Format_Bdoc).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gate.lib.basicdocument;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * One entry of a ChangeLog.
+ *
+ * This is the typed representation of a change: the command is an enum
+ * constant, offsets and ids are primitive ints, and set, type and feature
+ * names are canonical strings. Only the fields used by the command are set.
+ *
+ * @author Johann Petrak
+ */
+public class Change {
+
+  /**
+   * Stored in the id field if the change does not have an annotation id.
+   * Replaying an annotation:add change without an id fails.
+   */
+  public static final int NO_ID = -1;
+
+  /**
+   * The commands a change can have.
+   */
+  public static enum Command {
+    DOC_FEATURES_CLEAR("doc-features:clear"),
+    DOC_FEATURE_SET("doc-feature:set"),
+    DOC_FEATURE_REMOVE("doc-feature:remove"),
+    NAME_SET("name:set"),
+    ANN_FEATURES_CLEAR("ann-features:clear"),
+    ANN_FEATURE_SET("ann-feature:set"),
+    ANN_FEATURE_REMOVE("ann-feature:remove"),
+    ANNOTATION_ADD("annotation:add"),
+    ANNOTATION_REMOVE("annotation:remove"),
+    ANNOTATIONS_CLEAR("annotations:clear"),
+    ANNOTATIONS_REMOVE("annotations:remove");
+
+    private static final Map<String, Command> BY_NAME = new HashMap<>();
+    static {
+      for(Command command : values()) {
+        BY_NAME.put(command.name, command);
+      }
+    }
+
+    private final String name;
+
+    Command(String name) {
+      this.name = name;
+    }
+
+    /**
+     * The command as used in the serialized change log.
+     *
+     * @return command name, e.g. "annotation:add"
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * Return the command for a command name.
+     *
+     * @param name command name as used in the serialized change log
+     * @return the command or null if the name is not known
+     */
+    public static Command fromName(String name) {
+      return BY_NAME.get(name);
+    }
+  }
+
+  /**
+   * The command.
+   */
+  public Command command;
+
+  /**
+   * The annotation set name, or null.
+   */
+  public String set;
+
+  /**
+   * The annotation id, or NO_ID.
+   */
+  public int id = NO_ID;
+
+  /**
+   * The start offset of an added annotation.
+   */
+  public int start;
+
+  /**
+   * The end offset of an added annotation.
+   */
+  public int end;
+
+  /**
+   * The type of an added annotation.
+   */
+  public String type;
+
+  /**
+   * The features of an added annotation.
+   */
+  public Map<String, Object> features;
+
+  /**
+   * The feature name for feature set and remove commands.
+   */
+  public String feature;
+
+  /**
+   * The feature value for feature set commands.
+   */
+  public Object value;
+
+  /**
+   * The document name for the name:set command.
+   */
+  public String name;
+
+  /**
+   * Default constructor.
+   */
+  public Change() {
+  }
+
+  /**
+   * Create a change with just the command.
+   *
+   * @param command the command
+   */
+  public Change(Command command) {
+    this.command = command;
+  }
+
+  /**
+   * Create a change from its map representation.
+   *
+   * @param map the map as used in serialization
+   * @return the change or null if the command is not known
+   */
+  @SuppressWarnings("unchecked")
+  public static Change fromMap(Map<String, Object> map) {
+    Command command = Command.fromName((String)map.get("command"));
+    if(command == null) {
+      return null;
+    }
+    Change chg = new Change(command);
+    chg.set = StringCanonicalizer.canonicalize((String)map.get("set"));
+    Object id = map.get("id");
+    if(id != null) {
+      chg.id = ((Number)id).intValue();
+    }
+    Object start = map.get("start");
+    if(start != null) {
+      chg.start = ((Number)start).intValue();
+    }
+    Object end = map.get("end");
+    if(end != null) {
+      chg.end = ((Number)end).intValue();
+    }
+    chg.type = StringCanonicalizer.canonicalize((String)map.get("type"));
+    chg.features = StringCanonicalizer.canonicalizeKeys(
+            (Map<String, Object>)map.get("features"));
+    chg.feature = StringCanonicalizer.canonicalize((String)map.get("feature"));
+    chg.value = map.get("value");
+    chg.name = (String)map.get("name");
+    return chg;
+  }
+
+  /**
+   * Return the map representation of the change.
+   *
+   * @return map with the command and the fields used by the command
+   */
+  public Map<String, Object> toMap() {
+    Map<String, Object> map = new LinkedHashMap<>();
+    map.put("command", command.getName());
+    switch(command) {
+      case DOC_FEATURE_SET:
+        map.put("feature", feature);
+        map.put("value", value);
+        break;
+      case DOC_FEATURE_REMOVE:
+        map.put("feature", feature);
+        break;
+      case NAME_SET:
+        map.put("name", name);
+        break;
+      case ANN_FEATURES_CLEAR:
+      case ANNOTATION_REMOVE:
+        map.put("set", set);
+        map.put("id", (id == NO_ID) ? null : id);
+        break;
+      case ANN_FEATURE_SET:
+        map.put("set", set);
+        map.put("id", (id == NO_ID) ? null : id);
+        map.put("feature", feature);
+        map.put("value", value);
+        break;
+      case ANN_FEATURE_REMOVE:
+        map.put("set", set);
+        map.put("id", (id == NO_ID) ? null : id);
+        map.put("feature", feature);
+        break;
+      case ANNOTATION_ADD:
+        map.put("set", set);
+        map.put("start", start);
+        map.put("end", end);
+        map.put("type", type);
+        map.put("features", features);
+        map.put("id", (id == NO_ID) ? null : id);
+        break;
+      case ANNOTATIONS_CLEAR:
+      case ANNOTATIONS_REMOVE:
+        map.put("set", set);
+        break;
+      default:
+        break;
+    }
+    return map;
+  }
+
+  @Override
+  public String toString() {
+    return toMap().toString();
+  }
+
+}
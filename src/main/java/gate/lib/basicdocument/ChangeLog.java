@@ -22,19 +22,32 @@ package gate.lib.basicdocument;
 
 import gate.util.GateRuntimeException;
 import java.io.PrintStream;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 /**
  * Something that represents changes to a document.
  * 
+ * The changes are either kept as a list of maps, as they are used for
+ * serialization, or as a list of typed Change instances. The loaders 
+ * create the typed representation, and replaying the changes always uses it.
+ * With the typed representation, the changes field is a list view which 
+ * creates the map for a change whenever it is accessed.
+ * 
  * @author  Johann Petrak johann.petrak@gmail.com
  */
 public class ChangeLog {
   
   /**
    * The list of changes.
+   * If the typed representation is used, this is a view of the typed 
+   * changes: the maps are created on access, so changing a map does 
+   * not change the ChangeLog, but changing the list does.
    */
   public List<Map<String, Object>> changes = new ArrayList<>();
   
@@ -44,6 +57,275 @@ public class ChangeLog {
    */
   public String offset_type = "j";
   
+  /**
+   * The typed representation of the changes, if used.
+   * This is only used while the changes field is the view of it.
+   */
+  private List<Change> entries = null;
+  
+  /**
+   * The view of the entries as maps.
+   */
+  private List<Map<String, Object>> entriesView = null;
+  
+  /**
+   * List of change maps backed by a list of typed changes.
+   */
+  private static class ChangeMapsView extends AbstractList<Map<String, Object>> {
+    private final List<Change> entries;
+    ChangeMapsView(List<Change> entries) {
+      this.entries = entries;
+    }
+    @Override
+    public Map<String, Object> get(int index) {
+      return entries.get(index).toMap();
+    }
+    @Override
+    public int size() {
+      return entries.size();
+    }
+    @Override
+    public Map<String, Object> set(int index, Map<String, Object> map) {
+      return entries.set(index, toChange(map)).toMap();
+    }
+    @Override
+    public void add(int index, Map<String, Object> map) {
+      entries.add(index, toChange(map));
+    }
+    @Override
+    public Map<String, Object> remove(int index) {
+      return entries.remove(index).toMap();
+    }
+    private Change toChange(Map<String, Object> map) {
+      Change chg = Change.fromMap(map);
+      if(chg == null) {
+        throw new IllegalArgumentException("Unknown change command "+map.get("command"));
+      }
+      return chg;
+    }
+  }
+  
+  /**
+   * Create a ChangeLog which uses the typed representation.
+   * 
+   * @param entries the changes
+   * @param offset_type the offset type, "j" or "p"
+   * @return the ChangeLog
+   */
+  public static ChangeLog fromEntries(List<Change> entries, String offset_type) {
+    ChangeLog log = new ChangeLog();
+    log.setEntries(entries);
+    log.offset_type = offset_type;
+    return log;
+  }
+  
+  private void setEntries(List<Change> entries) {
+    this.entries = entries;
+    entriesView = new ChangeMapsView(entries);
+    changes = entriesView;
+  }
+  
+  /**
+   * Check if the typed representation is used.
+   * 
+   * @return true if the changes field is a view of the typed changes
+   */
+  public boolean usesEntries() {
+    return entries != null && changes == entriesView;
+  }
+  
+  /**
+   * Return the typed changes, converting to the typed representation first
+   * if necessary. 
+   * 
+   * After a conversion, the changes field is a view of the typed changes. 
+   * Changes with an unknown command are dropped by the conversion.
+   * 
+   * @return the list of typed changes
+   */
+  public List<Change> entries() {
+    if(!usesEntries()) {
+      List<Change> converted = new ArrayList<>((changes == null) ? 0 : changes.size());
+      if(changes != null) {
+        for(Map<String, Object> map : changes) {
+          Change chg = Change.fromMap(map);
+          if(chg != null) {
+            converted.add(chg);
+          }
+        }
+      }
+      setEntries(converted);
+    }
+    return entries;
+  }
+  
+  /**
+   * Return the changes as a list of maps.
+   * 
+   * This is the changes field, or an empty list if that is null.
+   * 
+   * @return list of change maps
+   */
+  public List<Map<String, Object>> changeMaps() {
+    return (changes == null) ? new ArrayList<>() : changes;
+  }
+  
+  /**
+   * What compact() needs to know about the changes of one annotation.
+   */
+  private static class AnnChanges {
+    int addIndex = -1;
+    int clearIndex = -1;
+    final List<Integer> indices = new ArrayList<>();
+    final Map<String, Integer> featureIndices = new HashMap<>();
+  }
+  
+  /**
+   * What compact() needs to know about the changes of one annotation set.
+   */
+  private static class SetChanges {
+    final List<Integer> indices = new ArrayList<>();
+    final Map<Integer, AnnChanges> anns = new HashMap<>();
+    AnnChanges ann(int id) {
+      return anns.computeIfAbsent(id, k -> new AnnChanges());
+    }
+  }
+  
+  /**
+   * Remove changes which are made pointless by later changes.
+   * 
+   * This converts to the typed representation and removes:
+   * <ul>
+   * <li>setting or removing a document or annotation feature if the same 
+   * feature gets set or removed again later</li>
+   * <li>everything for the document features before doc-features:clear, 
+   * and for the features of an annotation before ann-features:clear</li>
+   * <li>setting the name if a non-empty name gets set again later</li>
+   * <li>an annotation:add which is followed by annotation:remove for the
+   * same annotation, together with the remove and all changes of the 
+   * annotation in between</li>
+   * <li>all changes of an annotation before its annotation:remove</li>
+   * <li>all changes of an annotation set before annotations:clear or 
+   * annotations:remove for that set</li>
+   * </ul>
+   * Replaying the compacted ChangeLog gives the same result as replaying
+   * the original one, if the annotation ids from the ChangeLog are used and
+   * an annotation added by the ChangeLog does not already exist in the 
+   * document. This is the case when replaying a ChangeLog recorded for the
+   * same document. Changes which would fail, like removing a feature of an
+   * annotation which does not exist, may get removed as well.
+   * 
+   * @return this ChangeLog
+   */
+  public ChangeLog compact() {
+    List<Change> chgs = entries();
+    int n = chgs.size();
+    boolean[] dropped = new boolean[n];
+    Map<String, Integer> docFeatureIndices = new HashMap<>();
+    int docClearIndex = -1;
+    int nameIndex = -1;
+    Map<String, SetChanges> sets = new HashMap<>();
+    for(int i = 0; i < n; i++) {
+      Change chg = chgs.get(i);
+      switch(chg.command) {
+        case DOC_FEATURE_SET:
+        case DOC_FEATURE_REMOVE:
+          drop(dropped, docFeatureIndices.put(chg.feature, i));
+          break;
+        case DOC_FEATURES_CLEAR:
+          drop(dropped, docFeatureIndices.values());
+          docFeatureIndices.clear();
+          drop(dropped, docClearIndex);
+          docClearIndex = i;
+          break;
+        case NAME_SET:
+          if(chg.name != null && !chg.name.trim().isEmpty()) {
+            drop(dropped, nameIndex);
+          }
+          nameIndex = i;
+          break;
+        case ANN_FEATURE_SET:
+        case ANN_FEATURE_REMOVE: {
+          SetChanges set = sets.computeIfAbsent(chg.set, k -> new SetChanges());
+          AnnChanges ann = set.ann(chg.id);
+          drop(dropped, ann.featureIndices.put(chg.feature, i));
+          ann.indices.add(i);
+          set.indices.add(i);
+          break;
+        }
+        case ANN_FEATURES_CLEAR: {
+          SetChanges set = sets.computeIfAbsent(chg.set, k -> new SetChanges());
+          AnnChanges ann = set.ann(chg.id);
+          drop(dropped, ann.featureIndices.values());
+          ann.featureIndices.clear();
+          drop(dropped, ann.clearIndex);
+          ann.clearIndex = i;
+          ann.indices.add(i);
+          set.indices.add(i);
+          break;
+        }
+        case ANNOTATION_ADD: {
+          SetChanges set = sets.computeIfAbsent(chg.set, k -> new SetChanges());
+          // the changes before this could be for a different annotation
+          // with the same id, so those are not tracked any further
+          AnnChanges ann = new AnnChanges();
+          ann.addIndex = i;
+          ann.indices.add(i);
+          set.anns.put(chg.id, ann);
+          set.indices.add(i);
+          break;
+        }
+        case ANNOTATION_REMOVE: {
+          SetChanges set = sets.computeIfAbsent(chg.set, k -> new SetChanges());
+          AnnChanges ann = set.anns.remove(chg.id);
+          if(ann != null) {
+            drop(dropped, ann.indices);
+            if(ann.addIndex >= 0) {
+              // the annotation only existed in between
+              drop(dropped, i);
+              break;
+            }
+          }
+          set.indices.add(i);
+          break;
+        }
+        case ANNOTATIONS_CLEAR:
+        case ANNOTATIONS_REMOVE: {
+          SetChanges set = sets.get(chg.set);
+          if(set != null) {
+            drop(dropped, set.indices);
+          }
+          set = new SetChanges();
+          set.indices.add(i);
+          sets.put(chg.set, set);
+          break;
+        }
+        default:
+          break;
+      }
+    }
+    List<Change> compacted = new ArrayList<>();
+    for(int i = 0; i < n; i++) {
+      if(!dropped[i]) {
+        compacted.add(chgs.get(i));
+      }
+    }
+    setEntries(compacted);
+    return this;
+  }
+  
+  private static void drop(boolean[] dropped, Integer index) {
+    if(index != null && index >= 0) {
+      dropped[index] = true;
+    }
+  }
+  
+  private static void drop(boolean[] dropped, Collection<Integer> indices) {
+    for(Integer index : indices) {
+      dropped[index] = true;
+    }
+  }
+  
   /**
    * In-place updating of the offsets to the desired new type.
    * 
@@ -61,6 +343,21 @@ public class ChangeLog {
     if(offset_type.equals(newtype)) {
       return;
     }    
+    if(usesEntries()) {
+      boolean toJava = newtype.equals("j");
+      for(Change chg : entries) {
+        if(chg.command == Change.Command.ANNOTATION_ADD) {
+          if(toJava) {
+            chg.start = om.convertToJava(chg.start);
+            chg.end = om.convertToJava(chg.end);
+          } else {
+            chg.start = om.convertToPython(chg.start);
+            chg.end = om.convertToPython(chg.end);
+          }
+        }
+      }
+      return;
+    }
     for(Map<String,Object> change : changes) {
       if(change.containsKey("start")) {
         if(newtype.equals("j")) {
@@ -93,10 +390,22 @@ public class ChangeLog {
     return log;
   }
   
+  /**
+   * Convert the ChangeLog to a Map, as used for serialization.
+   * 
+   * @return the map representation of the ChangeLog
+   */
+  public Map<String, Object> toMap() {
+    Map<String, Object> map = new LinkedHashMap<>();
+    map.put("changes", changeMaps());
+    map.put("offset_type", offset_type);
+    return map;
+  }
+  
   public void pprint(PrintStream ps) {
     ps.println("ChangeLog(");
     int i = 0;
-    for(Map<String, Object> chg : changes) {
+    for(Map<String, Object> chg : changeMaps()) {
       ps.print(i);
       ps.print(chg);
       ps.println();
@@ -0,0 +1,376 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Format_Bdoc
+ * (see https://github.com/GateNLP/gateplugin-Format_Bdoc).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gate.lib.basicdocument;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Document;
+import gate.event.AnnotationEvent;
+import gate.event.AnnotationListener;
+import gate.event.AnnotationSetEvent;
+import gate.event.AnnotationSetListener;
+import gate.event.DocumentEvent;
+import gate.event.DocumentListener;
+import gate.event.FeatureMapListener;
+import gate.util.GateRuntimeException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Record the changes made to a GATE document as a ChangeLog.
+ *
+ * This attaches listeners to the document, its annotation sets, its
+ * annotations and its features and records the changes with the same
+ * commands as a ChangeLog created by the Python gatenlp package. The
+ * ChangeLog can be saved in any of the formats and applied to the Python
+ * document the GATE document was created from, so only the changes need to
+ * get transferred.
+ * <p>
+ * GATE does not tell which feature got changed, so feature changes are
+ * collected and only recorded when the ChangeLog is retrieved:
+ * for annotations added while recording, the features are included in the
+ * annotation:add change, for the document, the changed and removed
+ * features are recorded, and for other annotations, the features are
+ * cleared and all current features are set.
+ * <p>
+ * Changes of the document text cannot be represented in a ChangeLog,
+ * if the text changes while recording, getChangeLog() throws an exception.
+ * The recorder is not thread-safe.
+ *
+ * @author Johann Petrak
+ */
+public class ChangeLogRecorder {
+
+  private final Document doc;
+  private boolean pythonOffsets = false;
+  private boolean recording = false;
+  private boolean contentEdited = false;
+  private List<Change> changes = new ArrayList<>();
+  private final Map<String, SetRecorder> setRecorders = new HashMap<>();
+
+  // annotations added since the last getChangeLog(), by id
+  private final Map<Integer, Change> pendingAdds = new LinkedHashMap<>();
+  // other annotations with changed features, by set name
+  private final Map<String, Set<Integer>> changedFeatures = new LinkedHashMap<>();
+
+  private Map<String, Object> docFeatures;
+  private boolean docFeaturesChanged = false;
+
+  private final DocumentListener documentListener = new DocumentListener() {
+    @Override
+    public void annotationSetAdded(DocumentEvent e) {
+      String setname = e.getAnnotationSetName();
+      addSetRecorder(setname, doc.getAnnotations(setname));
+    }
+    @Override
+    public void annotationSetRemoved(DocumentEvent e) {
+      String setname = e.getAnnotationSetName();
+      SetRecorder rec = setRecorders.remove(setname);
+      if(rec != null) {
+        rec.annset.removeAnnotationSetListener(rec);
+      }
+      forgetSet(setname, (rec != null) ? rec.annset : null);
+      Change chg = new Change(Change.Command.ANNOTATIONS_REMOVE);
+      chg.set = setname;
+      changes.add(chg);
+    }
+    @Override
+    public void contentEdited(DocumentEvent e) {
+      contentEdited = true;
+    }
+  };
+
+  private final FeatureMapListener docFeaturesListener = () -> {
+    docFeaturesChanged = true;
+  };
+
+  /**
+   * Records the changes for one annotation set and its annotations.
+   */
+  private class SetRecorder implements AnnotationSetListener, AnnotationListener {
+    final String setname;
+    final AnnotationSet annset;
+    SetRecorder(String setname, AnnotationSet annset) {
+      this.setname = setname;
+      this.annset = annset;
+    }
+    @Override
+    public void annotationAdded(AnnotationSetEvent e) {
+      Annotation ann = e.getAnnotation();
+      ann.addAnnotationListener(this);
+      Change chg = new Change(Change.Command.ANNOTATION_ADD);
+      chg.set = setname;
+      chg.id = ann.getId();
+      chg.start = ann.getStartNode().getOffset().intValue();
+      chg.end = ann.getEndNode().getOffset().intValue();
+      chg.type = ann.getType();
+      changes.add(chg);
+      pendingAdds.put(ann.getId(), chg);
+    }
+    @Override
+    public void annotationRemoved(AnnotationSetEvent e) {
+      Annotation ann = e.getAnnotation();
+      ann.removeAnnotationListener(this);
+      Change add = pendingAdds.remove(ann.getId());
+      if(add != null) {
+        add.features = featureMap(ann);
+      }
+      Set<Integer> ids = changedFeatures.get(setname);
+      if(ids != null) {
+        ids.remove(ann.getId());
+      }
+      Change chg = new Change(Change.Command.ANNOTATION_REMOVE);
+      chg.set = setname;
+      chg.id = ann.getId();
+      changes.add(chg);
+    }
+    @Override
+    public void annotationUpdated(AnnotationEvent e) {
+      Annotation ann = (Annotation)e.getSource();
+      if(!pendingAdds.containsKey(ann.getId())) {
+        changedFeatures.computeIfAbsent(setname, k -> new LinkedHashSet<>()).
+                add(ann.getId());
+      }
+    }
+  }
+
+  /**
+   * Create a recorder for the document.
+   *
+   * @param doc the GATE document
+   */
+  public ChangeLogRecorder(Document doc) {
+    this.doc = doc;
+  }
+
+  /**
+   * Record the offsets as Python offsets (default is Java offsets).
+   *
+   * @return modified ChangeLogRecorder
+   */
+  public ChangeLogRecorder pythonOffsets() {
+    pythonOffsets = true;
+    return this;
+  }
+
+  /**
+   * Start recording changes.
+   *
+   * This attaches the listeners to the document, all its annotation sets
+   * and all their annotations.
+   *
+   * @return modified ChangeLogRecorder
+   */
+  public ChangeLogRecorder start() {
+    if(recording) {
+      return this;
+    }
+    recording = true;
+    doc.addDocumentListener(documentListener);
+    docFeatures = new HashMap<>(BdocUtils.featureMap2Map(doc.getFeatures(), null));
+    doc.getFeatures().addFeatureMapListener(docFeaturesListener);
+    addSetRecorder("", doc.getAnnotations());
+    for(String setname : doc.getAnnotationSetNames()) {
+      if(setname != null && !setname.isEmpty()) {
+        addSetRecorder(setname, doc.getAnnotations(setname));
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Stop recording changes.
+   *
+   * This removes all listeners. The changes recorded so far can still be
+   * retrieved with getChangeLog().
+   *
+   * @return modified ChangeLogRecorder
+   */
+  public ChangeLogRecorder stop() {
+    if(!recording) {
+      return this;
+    }
+    flush();
+    recording = false;
+    doc.removeDocumentListener(documentListener);
+    doc.getFeatures().removeFeatureMapListener(docFeaturesListener);
+    for(SetRecorder rec : setRecorders.values()) {
+      rec.annset.removeAnnotationSetListener(rec);
+      for(Annotation ann : rec.annset) {
+        ann.removeAnnotationListener(rec);
+      }
+    }
+    setRecorders.clear();
+    return this;
+  }
+
+  /**
+   * Return the changes recorded so far.
+   *
+   * @return a new ChangeLog with all changes since the recording was
+   * started or the last call of clear()
+   */
+  public ChangeLog getChangeLog() {
+    if(contentEdited) {
+      throw new GateRuntimeException(
+              "Document text was changed while recording, cannot create ChangeLog");
+    }
+    flush();
+    List<Change> entries = new ArrayList<>(changes);
+    ChangeLog log = ChangeLog.fromEntries(entries, "j");
+    if(pythonOffsets) {
+      // the changes are shared with the recorder, so convert copies
+      for(int i = 0; i < entries.size(); i++) {
+        Change chg = entries.get(i);
+        if(chg.command == Change.Command.ANNOTATION_ADD) {
+          Change copy = new Change(chg.command);
+          copy.set = chg.set;
+          copy.id = chg.id;
+          copy.start = chg.start;
+          copy.end = chg.end;
+          copy.type = chg.type;
+          copy.features = chg.features;
+          entries.set(i, copy);
+        }
+      }
+      log.fixupOffsets(OffsetMapperCache.get(doc), "p");
+      log.offset_type = "p";
+    }
+    return log;
+  }
+
+  /**
+   * Forget the changes recorded so far.
+   *
+   * @return modified ChangeLogRecorder
+   */
+  public ChangeLogRecorder clear() {
+    flush();
+    changes = new ArrayList<>();
+    contentEdited = false;
+    return this;
+  }
+
+  /**
+   * Record the collected feature changes.
+   */
+  private void flush() {
+    for(Change add : pendingAdds.values()) {
+      Annotation ann = getAnnotationSet(add.set).get(add.id);
+      if(ann != null) {
+        add.features = featureMap(ann);
+      }
+    }
+    pendingAdds.clear();
+    for(Map.Entry<String, Set<Integer>> e : changedFeatures.entrySet()) {
+      String setname = e.getKey();
+      AnnotationSet annset = getAnnotationSet(setname);
+      for(Integer id : e.getValue()) {
+        Annotation ann = annset.get(id);
+        if(ann == null) {
+          continue;
+        }
+        Change clear = new Change(Change.Command.ANN_FEATURES_CLEAR);
+        clear.set = setname;
+        clear.id = id;
+        changes.add(clear);
+        for(Map.Entry<String, Object> fe : featureMap(ann).entrySet()) {
+          Change set = new Change(Change.Command.ANN_FEATURE_SET);
+          set.set = setname;
+          set.id = id;
+          set.feature = fe.getKey();
+          set.value = fe.getValue();
+          changes.add(set);
+        }
+      }
+    }
+    changedFeatures.clear();
+    if(docFeaturesChanged) {
+      Map<String, Object> current = BdocUtils.featureMap2Map(doc.getFeatures(), null);
+      for(Map.Entry<String, Object> e : current.entrySet()) {
+        if(!docFeatures.containsKey(e.getKey()) ||
+                !Objects.equals(docFeatures.get(e.getKey()), e.getValue())) {
+          Change set = new Change(Change.Command.DOC_FEATURE_SET);
+          set.feature = e.getKey();
+          set.value = e.getValue();
+          changes.add(set);
+        }
+      }
+      for(String name : docFeatures.keySet()) {
+        if(!current.containsKey(name)) {
+          Change remove = new Change(Change.Command.DOC_FEATURE_REMOVE);
+          remove.feature = name;
+          changes.add(remove);
+        }
+      }
+      docFeatures = current;
+      docFeaturesChanged = false;
+    }
+  }
+
+  private void addSetRecorder(String setname, AnnotationSet annset) {
+    if(setRecorders.containsKey(setname)) {
+      return;
+    }
+    SetRecorder rec = new SetRecorder(setname, annset);
+    setRecorders.put(setname, rec);
+    annset.addAnnotationSetListener(rec);
+    for(Annotation ann : annset) {
+      ann.addAnnotationListener(rec);
+    }
+  }
+
+  /**
+   * Forget the collected feature changes for a removed annotation set.
+   * 
+   * The annotations added to the set while recording get their features
+   * from the removed set, which is not accessible through the document 
+   * any more.
+   */
+  private void forgetSet(String setname, AnnotationSet annset) {
+    changedFeatures.remove(setname);
+    pendingAdds.values().removeIf(chg -> {
+      if(!setname.equals(chg.set)) {
+        return false;
+      }
+      Annotation ann = (annset != null) ? annset.get(chg.id) : null;
+      if(ann != null) {
+        chg.features = featureMap(ann);
+      }
+      return true;
+    });
+  }
+
+  private AnnotationSet getAnnotationSet(String setname) {
+    return setname.isEmpty() ? doc.getAnnotations() : doc.getAnnotations(setname);
+  }
+
+  private static Map<String, Object> featureMap(Annotation ann) {
+    return BdocUtils.featureMap2Map(ann.getFeatures(), new LinkedHashMap<>());
+  }
+
+}
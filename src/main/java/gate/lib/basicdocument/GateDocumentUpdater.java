@@ -25,13 +25,19 @@ import gate.AnnotationSet;
 import gate.Document;
 import gate.Factory;
 import gate.FeatureMap;
+import gate.corpora.DocumentContentImpl;
 import gate.creole.ResourceInstantiationException;
 import gate.util.GateRuntimeException;
 import gate.util.InvalidOffsetException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 // TODO: use offset mapper when copying over the annotations from bdoc/changelog
 //   in case those offsets are type python
@@ -93,6 +99,15 @@ public class GateDocumentUpdater {
 
   private HandleExistingAnns handleExistingAnns = HandleExistingAnns.ADD_WITH_NEW_ID;
   private HandleNewAnns handleNewAnns = HandleNewAnns.ADD_WITH_BDOC_ID;
+  
+  private ExecutorService executor = null;
+  
+  private boolean bulkLoad = false;
+  /**
+   * If the fast path for an empty document is used for the current bdoc, 
+   * null if not determined yet.
+   */
+  private Boolean bulk = null;
 
   /**
    * If null, use all, otherwise the set of annotation set names to use.
@@ -109,14 +124,33 @@ public class GateDocumentUpdater {
    */
   private boolean updateName = true;
   
+  /**
+   * If true, compact a changelog before replaying it.
+   */
+  private boolean compactChangeLog = false;
+  
   /**
    * OffsetMapper for converting offsets to Java.
    * If we update from a BdocDocument of ChangeLog which does not have Java
    * offsets, we first create the offset mapper and store it here before any
    * annotations get copied. The offset mapper is only built whenever the 
-   * first annotation actually needs to get converted.
+   * first annotation actually needs to get converted, and is shared with
+   * other users of the same document through the OffsetMapperCache.
    */
   private OffsetMapper offsetMapper = null;
+  
+  // State for updating the document incrementally while a bdoc 
+  // representation is read, see setText(), addAnnotation() etc.
+  private boolean textKnown = false;
+  private boolean textHasSurrogates = false;
+  private boolean offsetTypeKnown = false;
+  private String offsetType = "j";
+  private String lastSetname = null;
+  private AnnotationSet lastGateset = null;
+  private List<String> pendingSetnames = new ArrayList<>();
+  private List<BdocAnnotation> pendingAnnotations = new ArrayList<>();
+  private List<Change> pendingChanges = new ArrayList<>();
+  private boolean changesApplied = false;
 
   /**
    * Create a document updater with the default options. Initially, all
@@ -174,6 +208,42 @@ public class GateDocumentUpdater {
     return this;
   }
   
+  /**
+   * Use a fast path if the GATE document does not contain any annotations. 
+   * 
+   * If this is set and the GATE document does not have any annotations 
+   * when annotations from a bdoc document start to get added, each 
+   * annotation is added directly, without checking if an annotation with
+   * the same id already exists and without handling existing annotations.
+   * This is meant for loading into a new document, where the annotation 
+   * ids within each set of the bdoc document are unique. 
+   * If the document already contains annotations, this has no effect.
+   * Updating from a changelog never uses the fast path.
+   * 
+   * @param flag true to use the fast path for empty documents
+   * @return modified GateDocumentUpdater
+   */
+  public GateDocumentUpdater bulkLoad(boolean flag) {
+    bulkLoad = flag;
+    return this;
+  }
+  
+  /**
+   * Compact a changelog before replaying it (default is no).
+   * 
+   * If this is set, fromChangeLog first removes changes which are made 
+   * pointless by later changes, see ChangeLog.compact(). This modifies the
+   * ChangeLog passed to fromChangeLog. Changes which get applied while 
+   * they are read with addChange() are never compacted.
+   * 
+   * @param flag true to compact the changelog
+   * @return modified GateDocumentUpdater
+   */
+  public GateDocumentUpdater compactChangeLog(boolean flag) {
+    compactChangeLog = flag;
+    return this;
+  }
+  
   
   /**
    * Include this annotation set in the updates.
@@ -235,6 +305,26 @@ public class GateDocumentUpdater {
     return this;
   }
   
+  /**
+   * Prepare the annotation sets in parallel.
+   * 
+   * If an executor is set, fromBdoc(BdocDocument) converts the offsets and
+   * creates the GATE feature maps for each annotation set in a separate 
+   * task on the executor, e.g. ForkJoinPool.commonPool(). The annotations
+   * are still added to the GATE document one set after the other on the
+   * calling thread, because all annotation sets of a GATE document share 
+   * the node and annotation id counters of the document, which are not 
+   * synchronized. The executor is not shut down by the updater.
+   * 
+   * @param executor the executor to use or null to do everything on the 
+   * calling thread
+   * @return modified GateDocumentUpdater
+   */
+  public GateDocumentUpdater setExecutor(ExecutorService executor) {
+    this.executor = executor;
+    return this;
+  }
+  
 
   /**
    * Add an annotation to the GATE annotation set.
@@ -255,7 +345,35 @@ public class GateDocumentUpdater {
     // make sure we always have the offsets as java offsets
     long startoffset = convertOffset(bdocstart, offsetType);
     long endoffset = convertOffset(bdocend, offsetType);
-    
+    addAnnotation(gateset, bdocannid, bdocstart, bdocend, 
+            startoffset, endoffset, bdoctype, bdocfeatures, null);
+  }
+  
+  /**
+   * Add an annotation to the GATE annotation set, with the offsets already
+   * converted to Java offsets.
+   * 
+   * @param gatefeatures if not null, the feature map to use for a new 
+   * annotation, otherwise it gets created from bdocfeatures
+   */
+  private void addAnnotation(AnnotationSet gateset,
+          int bdocannid, int bdocstart, int bdocend, 
+          long startoffset, long endoffset, String bdoctype,
+          Map<String, Object> bdocfeatures, FeatureMap gatefeatures) {
+    if(Boolean.TRUE.equals(bulk)) {
+      try {
+        FeatureMap fm = (gatefeatures != null) ? gatefeatures : 
+                gate.Utils.toFeatureMap((bdocfeatures == null) ? new HashMap<>() : bdocfeatures);
+        if(handleNewAnns == HandleNewAnns.ADD_WITH_BDOC_ID) {
+          gateset.add(bdocannid, startoffset, endoffset, bdoctype, fm);
+        } else {
+          gateset.add(startoffset, endoffset, bdoctype, fm);
+        }
+      } catch (InvalidOffsetException ex) {
+        throw new RuntimeException("Cannot add annotation", ex);
+      }
+      return;
+    }
     // make sure we always have a non-null feature map, use a new empty one
     // if necessary.
     Map<String, Object> bdoc_fm = 
@@ -270,7 +388,7 @@ public class GateDocumentUpdater {
     if (gateann == null && handleNewAnns == HandleNewAnns.ADD_WITH_NEW_ID) {
       try {
         gateset.add(startoffset, endoffset,
-                bdoctype, gate.Utils.toFeatureMap(bdoc_fm));
+                bdoctype, newFeatureMap(bdoc_fm, gatefeatures));
       } catch (InvalidOffsetException ex) {
         throw new RuntimeException("Cannot add annotation", ex);
       }     
@@ -280,7 +398,7 @@ public class GateDocumentUpdater {
       try {
         gateset.add(bdocannid,
                 startoffset, endoffset,
-                bdoctype, gate.Utils.toFeatureMap(bdoc_fm));
+                bdoctype, newFeatureMap(bdoc_fm, gatefeatures));
       } catch (InvalidOffsetException ex) {
         throw new RuntimeException("Cannot add annotation", ex);
       }     
@@ -288,7 +406,7 @@ public class GateDocumentUpdater {
     } else if (gateann != null && handleExistingAnns == HandleExistingAnns.ADD_WITH_NEW_ID) {
       try {
         gateset.add(startoffset, endoffset,
-                bdoctype, gate.Utils.toFeatureMap(bdoc_fm));
+                bdoctype, newFeatureMap(bdoc_fm, gatefeatures));
       } catch (InvalidOffsetException ex) {
         throw new RuntimeException("Cannot add annotation", ex);
       }
@@ -344,7 +462,7 @@ public class GateDocumentUpdater {
           gateset.remove(gateann);
           try {
             gateset.add(bdocannid, startoffset, endoffset,
-                    bdoctype, gate.Utils.toFeatureMap(bdoc_fm));
+                    bdoctype, newFeatureMap(bdoc_fm, gatefeatures));
           } catch (InvalidOffsetException ex) {
             throw new RuntimeException("Cannot add annotation", ex);
           }
@@ -370,16 +488,93 @@ public class GateDocumentUpdater {
 
   }
 
-  private void addAnnotationSet(BdocAnnotationSet annset, String offsetType) {
-    String setname = annset.name;
-    if(setname == null) {
-      setname = "";
+  private FeatureMap newFeatureMap(Map<String, Object> bdoc_fm, FeatureMap gatefeatures) {
+    return (gatefeatures != null) ? gatefeatures : gate.Utils.toFeatureMap(bdoc_fm);
+  }
+  
+  /**
+   * The annotations of an annotation set with Java offsets and GATE 
+   * feature maps, ready to get added to the GATE document.
+   */
+  private static class PreparedSet {
+    BdocAnnotationSet annset;
+    int[] bdocstarts;
+    int[] bdocends;
+    long[] starts;
+    long[] ends;
+    FeatureMap[] features;
+  }
+  
+  /**
+   * Convert the offsets and features of a set, this does not access the 
+   * GATE document and can run on any thread.
+   */
+  private static PreparedSet prepareAnnotationSet(BdocAnnotationSet annset, 
+          OffsetMapper mapper) {
+    PreparedSet prepared = new PreparedSet();
+    prepared.annset = annset;
+    BdocAnnotationColumns columns = annset.columns();
+    int n = (columns != null) ? columns.size() : annset.annotations.size();
+    prepared.bdocstarts = new int[n];
+    prepared.bdocends = new int[n];
+    prepared.starts = new long[n];
+    prepared.ends = new long[n];
+    prepared.features = new FeatureMap[n];
+    for(int i = 0; i < n; i++) {
+      Map<String, Object> fm;
+      if(columns != null) {
+        prepared.bdocstarts[i] = columns.getStart(i);
+        prepared.bdocends[i] = columns.getEnd(i);
+        fm = columns.getFeatures(i);
+      } else {
+        BdocAnnotation ann = annset.annotations.get(i);
+        prepared.bdocstarts[i] = ann.start;
+        prepared.bdocends[i] = ann.end;
+        fm = ann.features;
+      }
+      prepared.starts[i] = (mapper == null) ? 
+              prepared.bdocstarts[i] : mapper.convertToJava(prepared.bdocstarts[i]);
+      prepared.ends[i] = (mapper == null) ? 
+              prepared.bdocends[i] : mapper.convertToJava(prepared.bdocends[i]);
+      prepared.features[i] = gate.Utils.toFeatureMap((fm == null) ? new HashMap<>() : fm);
     }
-    AnnotationSet gateset;
-    if (setname.equals("")) {
-      gateset = gateDocument.getAnnotations();
+    return prepared;
+  }
+  
+  private void addPreparedSet(PreparedSet prepared) {
+    BdocAnnotationSet annset = prepared.annset;
+    AnnotationSet gateset = getGateSet(annset.name);
+    BdocAnnotationColumns columns = annset.columns();
+    for(int i = 0; i < prepared.starts.length; i++) {
+      BdocAnnotation ann = (columns != null) ? null : annset.annotations.get(i);
+      addAnnotation(gateset, 
+              (columns != null) ? columns.getId(i) : ann.id,
+              prepared.bdocstarts[i], prepared.bdocends[i],
+              prepared.starts[i], prepared.ends[i],
+              (columns != null) ? columns.getType(i) : ann.type,
+              (columns != null) ? columns.getFeatures(i) : ann.features,
+              prepared.features[i]);
+    }
+  }
+  
+  private AnnotationSet getGateSet(String setname) {
+    if(setname == null || setname.equals("")) {
+      return gateDocument.getAnnotations();
     } else {
-      gateset = gateDocument.getAnnotations(setname);
+      return gateDocument.getAnnotations(setname);
+    }
+  }
+  
+  private void addAnnotationSet(BdocAnnotationSet annset, String offsetType) {
+    AnnotationSet gateset = getGateSet(annset.name);
+    BdocAnnotationColumns columns = annset.columns();
+    if(columns != null) {
+      for(int i = 0; i < columns.size(); i++) {
+        addAnnotation(gateset,
+                columns.getId(i), columns.getStart(i), columns.getEnd(i), 
+                columns.getType(i), columns.getFeatures(i), offsetType);
+      }
+      return;
     }
     annset.annotations.forEach((bdocann) -> {
       addAnnotation(gateset,
@@ -397,32 +592,249 @@ public class GateDocumentUpdater {
    * @return the updated GATE document
    */
   public Document fromBdoc(BdocDocument bdoc) {
-    // can only assign features if there are any in the bdoc
-    if (bdoc.features != null) {
+    startBulk();
+    try {
+      // can only assign features if there are any in the bdoc
+      if (bdoc.features != null) {
+        if (featurenames == null) {
+          gateDocument.getFeatures().putAll(bdoc.features);
+        } else {
+          featurenames.forEach((fname) -> {
+            gateDocument.getFeatures().put(fname, bdoc.features.get(fname));
+          });
+        }
+      }
+      if (bdoc.annotation_sets != null && executor != null) {
+        addAnnotationSetsParallel(bdoc);
+      } else if (bdoc.annotation_sets != null) {
+        if (annsetnames == null) {
+          bdoc.annotation_sets.keySet().forEach((annsetname) -> {
+            addAnnotationSet(bdoc.annotation_sets.get(annsetname), bdoc.offset_type);
+          });
+        } else {
+          annsetnames.forEach((annsetname) -> {
+            addAnnotationSet(bdoc.annotation_sets.get(annsetname), bdoc.offset_type);
+          });
+        }
+      }
+      if(updateName && bdoc.name != null && !bdoc.name.isEmpty() ) {
+        gateDocument.setName(bdoc.name);
+      }
+    } finally {
+      // the decision is only valid for this bdoc, also if adding failed
+      bulk = null;
+    }
+    return gateDocument;
+  }
+  
+  /**
+   * Decide if the fast path for an empty document can be used.
+   */
+  private void startBulk() {
+    if(bulk != null) {
+      return;
+    }
+    bulk = false;
+    if(bulkLoad && gateDocument.getAnnotations().isEmpty()) {
+      bulk = true;
+      Map<String, AnnotationSet> named = gateDocument.getNamedAnnotationSets();
+      if(named != null) {
+        for(AnnotationSet set : named.values()) {
+          if(!set.isEmpty()) {
+            bulk = false;
+            break;
+          }
+        }
+      }
+    }
+  }
+
+  private void addAnnotationSetsParallel(BdocDocument bdoc) {
+    List<BdocAnnotationSet> annsets = new ArrayList<>();
+    for(String annsetname : 
+            (annsetnames == null) ? bdoc.annotation_sets.keySet() : annsetnames) {
+      annsets.add(bdoc.annotation_sets.get(annsetname));
+    }
+    OffsetMapper mapper = 
+            "p".equals(bdoc.offset_type) ? OffsetMapperCache.get(gateDocument) : null;
+    List<Future<PreparedSet>> futures = new ArrayList<>(annsets.size());
+    for(BdocAnnotationSet annset : annsets) {
+      futures.add(executor.submit(() -> prepareAnnotationSet(annset, mapper)));
+    }
+    // sets get added while later sets are still being prepared
+    for(Future<PreparedSet> future : futures) {
+      PreparedSet prepared;
+      try {
+        prepared = future.get();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new GateRuntimeException("Interrupted while preparing annotation sets", ex);
+      } catch (ExecutionException ex) {
+        if(ex.getCause() instanceof RuntimeException) {
+          throw (RuntimeException)ex.getCause();
+        }
+        throw new GateRuntimeException("Could not prepare annotation set", ex.getCause());
+      }
+      addPreparedSet(prepared);
+    }
+  }
+
+  /**
+   * Replace the text of the GATE document.
+   * 
+   * This and the other incremental update methods (setName, setFeatures,
+   * setOffsetType, addAnnotation, finish) can be used to update the 
+   * GATE document while a bdoc representation is read, without creating
+   * a BdocDocument first. Annotations are added to the GATE document 
+   * as soon as the text is known and the offset type is known or does 
+   * not matter because the text does not contain any surrogate pairs. 
+   * Until then, annotations get buffered. After all parts have been 
+   * read, finish() must be called.
+   * 
+   * @param text the new document text
+   */
+  public void setText(String text) {
+    gateDocument.setContent(new DocumentContentImpl(text));
+    offsetMapper = null;
+    textKnown = true;
+    textHasSurrogates = hasSurrogates(text);
+    addPendingAnnotations();
+  }
+  
+  private static boolean hasSurrogates(String text) {
+    if(text != null) {
+      for(int i = 0; i < text.length(); i++) {
+        if(Character.isSurrogate(text.charAt(i))) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+  
+  /**
+   * Set the offset type of the annotations to add incrementally.
+   * 
+   * @param offsetType "j" or "p", null is the same as "j"
+   */
+  public void setOffsetType(String offsetType) {
+    if(offsetType == null) {
+      offsetType = "j";
+    }
+    if(changesApplied && textHasSurrogates && !offsetType.equals(this.offsetType)) {
+      throw new GateRuntimeException(
+              "Offset type "+offsetType+" set after changes have been applied with offset type "+this.offsetType);
+    }
+    this.offsetType = offsetType;
+    offsetTypeKnown = true;
+    addPendingAnnotations();
+    addPendingChanges();
+  }
+  
+  /**
+   * Update the document name incrementally.
+   * 
+   * This respects the updateName option.
+   * 
+   * @param name the bdoc document name
+   */
+  public void setName(String name) {
+    if(updateName && name != null && !name.isEmpty() ) {
+      gateDocument.setName(name);
+    }
+  }
+  
+  /**
+   * Update the document features incrementally.
+   * 
+   * This respects the selected feature names.
+   * 
+   * @param features the bdoc document features, may be null
+   */
+  public void setFeatures(Map<String, Object> features) {
+    if (features != null) {
       if (featurenames == null) {
-        gateDocument.getFeatures().putAll(bdoc.features);
+        gateDocument.getFeatures().putAll(features);
       } else {
         featurenames.forEach((fname) -> {
-          gateDocument.getFeatures().put(fname, bdoc.features.get(fname));
+          gateDocument.getFeatures().put(fname, features.get(fname));
         });
       }
     }
-    if (bdoc.annotation_sets != null) {
-      if (annsetnames == null) {
-        bdoc.annotation_sets.keySet().forEach((annsetname) -> {
-          addAnnotationSet(bdoc.annotation_sets.get(annsetname), bdoc.offset_type);
-        });
-      } else {
-        annsetnames.forEach((annsetname) -> {
-          addAnnotationSet(bdoc.annotation_sets.get(annsetname), bdoc.offset_type);
-        });
-      }
+  }
+  
+  /**
+   * Add an annotation incrementally.
+   * 
+   * This respects the selected annotation set names and the options for 
+   * handling new and existing annotations. 
+   * 
+   * @param setname the name of the annotation set, null for the default set
+   * @param ann the bdoc annotation, this instance is not retained once 
+   * it has been added to the GATE document
+   */
+  public void addAnnotation(String setname, BdocAnnotation ann) {
+    if(setname == null) {
+      setname = "";
     }
-    if(updateName && bdoc.name != null && !bdoc.name.isEmpty() ) {
-      gateDocument.setName(bdoc.name);
+    if(annsetnames != null && !annsetnames.contains(setname)) {
+      return;
+    }
+    if(textKnown && (offsetTypeKnown || !textHasSurrogates)) {
+      addBdocAnnotation(setname, ann);
+    } else {
+      pendingSetnames.add(setname);
+      pendingAnnotations.add(ann);
+    }
+  }
+  
+  /**
+   * Finish updating the document incrementally.
+   * 
+   * This adds any annotations which are still buffered. 
+   * If no offset type has been set, Java offsets are assumed.
+   * 
+   * @return the updated GATE document
+   */
+  public Document finish() {
+    if(!pendingAnnotations.isEmpty() && !textKnown) {
+      throw new GateRuntimeException("Cannot add annotations, no document text");
+    }
+    offsetTypeKnown = true;
+    try {
+      addPendingAnnotations();
+      addPendingChanges();
+    } finally {
+      lastSetname = null;
+      lastGateset = null;
+      bulk = null;
     }
     return gateDocument;
   }
+  
+  private void addPendingAnnotations() {
+    if(pendingAnnotations.isEmpty() || !textKnown || 
+            (!offsetTypeKnown && textHasSurrogates)) {
+      return;
+    }
+    for(int i = 0; i < pendingAnnotations.size(); i++) {
+      addBdocAnnotation(pendingSetnames.get(i), pendingAnnotations.get(i));
+    }
+    pendingSetnames.clear();
+    pendingAnnotations.clear();
+  }
+  
+  private void addBdocAnnotation(String setname, BdocAnnotation ann) {
+    startBulk();
+    if(!setname.equals(lastSetname)) {
+      lastGateset = setname.isEmpty() 
+              ? gateDocument.getAnnotations()
+              : gateDocument.getAnnotations(setname);
+      lastSetname = setname;
+    }
+    addAnnotation(lastGateset, ann.id, ann.start, ann.end, ann.type, 
+            ann.features, offsetType);
+  }
 
   /**
    * Actually carry out the update of the GATE document from the Bdoc ChangeLog.
@@ -433,114 +845,154 @@ public class GateDocumentUpdater {
    * @return returns the updated GATE document 
    */
   public Document fromChangeLog(ChangeLog chlog) {
-    for (Map<String, Object> chg : chlog.changes) {
-      // doc-features:clear setname, id
-      // doc-feature:set, feature, value
-      // doc-feature:remove, feature
-      // ann-features:clear set, id
-      // ann-feature:set, annid, feature, value
-      // ann-feature:remove, annid, feature
-      // annotation:add, set, start, end, type, features, id
-      // annotation:remove, set, id
-      // annotations:clear, setname
-      // annotations:add, setname
-      String cmd = (String) chg.get("command");
-      String setname = (String) chg.get("set");
-      AnnotationSet annset = null;
-      if (setname != null) {
-        annset
-                = setname.equals("")
+    String offsetType = chlog.offset_type;
+    if (compactChangeLog) {
+      chlog.compact();
+    }
+    lastSetname = null;
+    for (Change chg : chlog.entries()) {
+      applyChange(chg, offsetType);
+    }
+    lastSetname = null;
+    lastGateset = null;
+    return gateDocument;
+  }
+  
+  /**
+   * Apply a change incrementally.
+   * 
+   * This is for updating the GATE document while a ChangeLog is read, 
+   * without keeping the changes in memory. The offset type should be set 
+   * with setOffsetType() before the first change. If it is not known yet
+   * and the document text contains surrogate pairs, the changes get 
+   * buffered until it is set or finish() is called.
+   * After all changes have been read, finish() must be called.
+   * 
+   * @param chg the change, this instance is not retained once it has been
+   * applied
+   */
+  public void addChange(Change chg) {
+    if(!textKnown) {
+      textHasSurrogates = hasSurrogates(gateDocument.getContent().toString());
+      textKnown = true;
+    }
+    if(pendingChanges.isEmpty() && (offsetTypeKnown || !textHasSurrogates)) {
+      applyChange(chg, offsetType);
+      changesApplied = true;
+    } else {
+      pendingChanges.add(chg);
+    }
+  }
+  
+  private void addPendingChanges() {
+    if(pendingChanges.isEmpty() || (!offsetTypeKnown && textHasSurrogates)) {
+      return;
+    }
+    for(Change chg : pendingChanges) {
+      applyChange(chg, offsetType);
+    }
+    changesApplied = true;
+    pendingChanges.clear();
+  }
+  
+  private void applyChange(Change chg, String offsetType) {
+    // most changes are for the same set as the previous one
+    String setname = chg.set;
+    AnnotationSet annset = null;
+    if (setname != null) {
+      if (!setname.equals(lastSetname)) {
+        lastGateset
+                = setname.isEmpty()
                 ? gateDocument.getAnnotations()
                 : gateDocument.getAnnotations(setname);
+        lastSetname = setname;
       }
-      Integer id = (Integer) chg.get("id");
-      String feature = (String) chg.get("feature");
-      Object value = chg.get("value");
-      switch (cmd) {
-        case "doc-features:clear":
-          gateDocument.getFeatures().clear();
-          break;
-        case "ann-features:clear":
-          if (annset != null) {
-            Annotation ann = annset.get(id);
-            if (ann == null) {
-              // silently ignore, that annotation could have been removed 
-            } else {
-              ann.getFeatures().clear();
-            }
+      annset = lastGateset;
+    }
+    switch (chg.command) {
+      case DOC_FEATURES_CLEAR:
+        gateDocument.getFeatures().clear();
+        break;
+      case ANN_FEATURES_CLEAR:
+        if (annset != null) {
+          Annotation ann = annset.get(chg.id);
+          if (ann == null) {
+            // silently ignore, that annotation could have been removed 
+          } else {
+            ann.getFeatures().clear();
           }
-          break;
-        case "doc-feature:set":
-          gateDocument.getFeatures().put(feature, value);
-          break;
-        case "name:set":
-          if(updateName) {
-            String name = (String)chg.get("name");
-            if(name != null && !name.trim().isEmpty()) {
-              gateDocument.setName(name);
-            }
+        }
+        break;
+      case DOC_FEATURE_SET:
+        gateDocument.getFeatures().put(chg.feature, chg.value);
+        break;
+      case NAME_SET:
+        if(updateName) {
+          String name = chg.name;
+          if(name != null && !name.trim().isEmpty()) {
+            gateDocument.setName(name);
           }
-          break;
-        case "ann-feature:set":
-          if (annset != null) {
-            Annotation ann = annset.get(id);
-            if (ann == null) {
-              // IMPORTANT: this is silently ignored because the changelog can
-              // sometimes contain feature changes for annotations which are
-              // not in the set any longer. This happens if an annotation gets
-              // removed from the set, but still exists as an annotation
-              // and somebody sets a feature on that annotation. 
-              // throw new RuntimeException("Annotation does not exist with id " + id);
-            } else {
-                ann.getFeatures().put(feature, value);
-            }
-          } // TODO: how could it happen that there is no annset?
-          break;
-        case "doc-feature:remove":
-          gateDocument.getFeatures().remove(feature);
-          break;
-        case "ann-feature:remove":
-          if (annset != null) {
-            Annotation ann = annset.get(id);
-            if (ann == null) {
-              throw new RuntimeException("Annotation does not exist with id " + id);
-            } else {
-              ann.getFeatures().remove(feature);
-            }
+        }
+        break;
+      case ANN_FEATURE_SET:
+        if (annset != null) {
+          Annotation ann = annset.get(chg.id);
+          if (ann == null) {
+            // IMPORTANT: this is silently ignored because the changelog can
+            // sometimes contain feature changes for annotations which are
+            // not in the set any longer. This happens if an annotation gets
+            // removed from the set, but still exists as an annotation
+            // and somebody sets a feature on that annotation. 
+            // throw new RuntimeException("Annotation does not exist with id " + id);
+          } else {
+              ann.getFeatures().put(chg.feature, chg.value);
           }
-          break;
-        case "annotation:add":
-          int start = (Integer) chg.get("start");
-          int end = (Integer) chg.get("end");
-          String type = (String) chg.get("type");
-          @SuppressWarnings("unchecked")
-          Map<String, Object> features = (Map<String, Object>) chg.get("features");
-          addAnnotation(annset, id, start, end, type, features, chlog.offset_type);
-          break;
-        case "annotation:remove":
-          if (annset != null) {
-            Annotation gateann = annset.get(id);
-            annset.remove(gateann);
+        } // TODO: how could it happen that there is no annset?
+        break;
+      case DOC_FEATURE_REMOVE:
+        gateDocument.getFeatures().remove(chg.feature);
+        break;
+      case ANN_FEATURE_REMOVE:
+        if (annset != null) {
+          Annotation ann = annset.get(chg.id);
+          if (ann == null) {
+            throw new RuntimeException("Annotation does not exist with id " + chg.id);
+          } else {
+            ann.getFeatures().remove(chg.feature);
           }
-          break;
-        case "annotations:clear":
-          if (annset != null) {
+        }
+        break;
+      case ANNOTATION_ADD:
+        if (chg.id == Change.NO_ID) {
+          throw new GateRuntimeException("Change annotation:add without an annotation id");
+        }
+        addAnnotation(annset, chg.id, chg.start, chg.end, chg.type, 
+                chg.features, offsetType);
+        break;
+      case ANNOTATION_REMOVE:
+        if (annset != null) {
+          Annotation gateann = annset.get(chg.id);
+          annset.remove(gateann);
+        }
+        break;
+      case ANNOTATIONS_CLEAR:
+        if (annset != null) {
+          annset.clear();
+        }
+        break;
+      case ANNOTATIONS_REMOVE:
+        if (setname != null) {
+          if (setname.isEmpty() && annset != null) {
             annset.clear();
+          } else {
+            gateDocument.removeAnnotationSet(setname);
+            // a later change for this set gets a new set
+            lastSetname = null;
+            lastGateset = null;
           }
-          break;
-        case "annotations:remove":
-          if (setname != null) {
-            if (setname.isEmpty() && annset != null) {
-              annset.clear();
-            } else {
-              gateDocument.removeAnnotationSet(setname);
-            }
-          }
-          break;
-      }
-
+        }
+        break;
     }
-    return gateDocument;
   }
   
   /**
@@ -556,7 +1008,7 @@ public class GateDocumentUpdater {
   private long convertOffset(int offset, String offsetType) {
     if("p".equals(offsetType)) {
       if(offsetMapper == null) {
-        offsetMapper = new OffsetMapper(gateDocument.getContent().toString());
+        offsetMapper = OffsetMapperCache.get(gateDocument);
       }
       return (long)offsetMapper.convertToJava(offset);
     } else {
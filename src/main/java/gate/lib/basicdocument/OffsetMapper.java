@@ -23,6 +23,7 @@ package gate.lib.basicdocument;
 import gate.util.GateRuntimeException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.IntStream;
 
 /**
  * Simple class to map offsets between UTF16 and character sequences.
@@ -35,51 +36,105 @@ import java.util.List;
  * @author Johann Petrak johann.petrak@gmail.com
  */
 public class OffsetMapper {
+  /**
+   * Number of UTF16 code units in the string.
+   */
+  private int javaLength;
+  /**
+   * Number of Unicode code points in the string.
+   */
+  private int pythonLength;
+  /**
+   * The mapping tables, both null if the string does not contain any 
+   * surrogate pairs and the mapping is the identity or if the sparse
+   * representation is used. 
+   */
   private int[] java2python;
   private int[] python2java;
+  /**
+   * The sparse representation: the sorted Java offsets of all surrogate 
+   * pairs, or null if the mapping tables or the identity are used. 
+   */
+  private int[] pairStarts;
+  /**
+   * The sparse representation is used if there is at most one surrogate 
+   * pair per this many UTF16 code units.
+   */
+  private static final int SPARSE_MIN_CHARS_PER_PAIR = 16;
   /**
    * Disallow no-argument constructor.
    */
   private OffsetMapper() {}
   private void cache(String str) {
-    List<Integer> java2python_list = new ArrayList<Integer>();
-    List<Integer> python2java_list = new ArrayList<Integer>();
-    
+    javaLength = str.length();
+    int npairs = 0;
+    for (int i=0; i<javaLength-1; i++) {
+      if(isPairAt(str, i)) {
+        npairs++;
+        i++;
+      }
+    }
+    pythonLength = javaLength - npairs;
+    if(npairs == 0) {
+      // identity mapping, no tables needed
+      java2python = null;
+      python2java = null;
+      return;
+    }
+    if((long)npairs * SPARSE_MIN_CHARS_PER_PAIR <= javaLength) {
+      // only a few surrogate pairs: just remember where they are, offsets
+      // get converted by binary search
+      pairStarts = new int[npairs];
+      int k = 0;
+      for (int i=0; i<javaLength-1; i++) {
+        if(isPairAt(str, i)) {
+          pairStarts[k++] = i;
+          i++;
+        }
+      }
+      return;
+    }
+    // Both tables have one more entry so that we can also convert an end 
+    // offset for the last position in the document, which is one beyond 
+    // the actual document content.
+    java2python = new int[javaLength+1];
+    python2java = new int[pythonLength+1];
     int off_p = 0;  // in this we keep track of the corresponding python off
-    for (int i=0; i<str.length(); i++) {
-      char ch = str.charAt(i);      
-      java2python_list.add(off_p);       
-      if(Character.isHighSurrogate(ch)) {
-        // first of the two, we do not increment off_p after this one
-        // however if we get the first one, we add the current java offset
-        // to the python2java table
-        python2java_list.add(i);
-      } else if(Character.isLowSurrogate(ch)) {
-        off_p += 1;
-        // do not add to python2java
-      } else {
-        off_p += 1;
-        python2java_list.add(i);
+    for (int i=0; i<javaLength; i++) {
+      java2python[i] = off_p;
+      python2java[off_p] = i;
+      if(isPairAt(str, i)) {
+        // the low surrogate maps to the same python offset as the high one
+        // and has no entry of its own in python2java
+        i++;
+        java2python[i] = off_p;
       }
+      off_p += 1;
     }
-    // we also need to be able to convert an end offset for the last position 
-    // in the document, which is one beyond the actual document content.
-    // For this we add the previous offset plus one to the end of both lists
-    java2python_list.add(java2python_list.get(java2python_list.size()-1)+1);
-    python2java_list.add(python2java_list.get(python2java_list.size()-1)+1);
-    // System.err.println("DEBUG: j2p:"+java2python_list+" / len="+java2python_list.size());
-    // System.err.println("DEBUG: p2j:"+python2java_list+" / len="+python2java_list.size());
-    java2python = 
-            java2python_list.parallelStream().
-                    mapToInt(Integer::intValue).toArray();
-    python2java = 
-            python2java_list.parallelStream().
-                    mapToInt(Integer::intValue).toArray();
+    java2python[javaLength] = pythonLength;
+    python2java[pythonLength] = javaLength;
+  }
+  
+  /**
+   * Check if there is a surrogate pair starting at the index.
+   * 
+   * Unpaired surrogates count as a code point of their own, the same 
+   * way as Python does it.
+   */
+  private static boolean isPairAt(String str, int i) {
+    return Character.isHighSurrogate(str.charAt(i)) && 
+            i+1 < str.length() && 
+            Character.isLowSurrogate(str.charAt(i+1));
   }
   
   /**
    * Create the offset mappings for the given string and cache them. 
    * 
+   * If the string does not contain any surrogate pairs, no mapping tables
+   * are created at all. If it contains only a few, only their positions
+   * get stored and offsets are converted by binary search over them. 
+   * Otherwise full mapping tables are created for constant time lookups.
+   * 
    * @param string the string to use
    */
   public OffsetMapper(String string) {
@@ -93,11 +148,18 @@ public class OffsetMapper {
    * @return  python offset
    */
   public int convertToPython(int offset) {
-    if(offset >= 0 && offset <= java2python.length) {
-      return java2python[offset];
+    if(offset >= 0 && offset <= javaLength) {
+      if(java2python != null) {
+        return java2python[offset];
+      } else if(pairStarts != null) {
+        // every pair which starts before the offset reduces it by one
+        return offset - countPairsBefore(offset);
+      } else {
+        return offset;
+      }
     } else {
       throw new GateRuntimeException("Attempt to find python offset outside of range: "+
-              offset+" java length is "+java2python.length);
+              offset+" java length is "+javaLength);
     }
   }
 
@@ -108,12 +170,247 @@ public class OffsetMapper {
    * @return java offset
    */
   public int convertToJava(int offset) {
-    if(offset >= 0 && offset <= python2java.length) {
-      return python2java[offset];
+    if(offset >= 0 && offset <= pythonLength) {
+      if(python2java != null) {
+        return python2java[offset];
+      } else if(pairStarts != null) {
+        return offset + countPythonPairsBefore(offset);
+      } else {
+        return offset;
+      }
     } else {
       throw new GateRuntimeException("Attempt to find java offset outside of range: "+
-              offset+" python length is "+python2java.length);
+              offset+" python length is "+pythonLength);
+    }
+  }
+  
+  /**
+   * Convert all the Java offsets in the array to Python in place.
+   * 
+   * @param offsets the offsets to convert
+   */
+  public void convertToPython(int[] offsets) {
+    convertToPython(offsets, 0, offsets.length);
+  }
+  
+  /**
+   * Convert the Java offsets in a range of the array to Python in place.
+   * 
+   * If any offset is out of range, an exception is thrown and the offsets
+   * before it have already been converted.
+   * 
+   * @param offsets the offsets to convert
+   * @param from index of the first offset to convert
+   * @param to index after the last offset to convert
+   */
+  public void convertToPython(int[] offsets, int from, int to) {
+    final int maxOffset = javaLength;
+    if(java2python != null) {
+      final int[] table = java2python;
+      for(int i = from; i < to; i++) {
+        int offset = offsets[i];
+        if(offset < 0 || offset > maxOffset) {
+          convertToPython(offset);  // throws the exception
+        }
+        offsets[i] = table[offset];
+      }
+    } else if(pairStarts != null) {
+      for(int i = from; i < to; i++) {
+        offsets[i] = convertToPython(offsets[i]);
+      }
+    } else {
+      for(int i = from; i < to; i++) {
+        int offset = offsets[i];
+        if(offset < 0 || offset > maxOffset) {
+          convertToPython(offset);  // throws the exception
+        }
+      }
+    }
+  }
+  
+  /**
+   * Convert all the Python offsets in the array to Java in place.
+   * 
+   * @param offsets the offsets to convert
+   */
+  public void convertToJava(int[] offsets) {
+    convertToJava(offsets, 0, offsets.length);
+  }
+  
+  /**
+   * Convert the Python offsets in a range of the array to Java in place.
+   * 
+   * If any offset is out of range, an exception is thrown and the offsets
+   * before it have already been converted.
+   * 
+   * @param offsets the offsets to convert
+   * @param from index of the first offset to convert
+   * @param to index after the last offset to convert
+   */
+  public void convertToJava(int[] offsets, int from, int to) {
+    final int maxOffset = pythonLength;
+    if(python2java != null) {
+      final int[] table = python2java;
+      for(int i = from; i < to; i++) {
+        int offset = offsets[i];
+        if(offset < 0 || offset > maxOffset) {
+          convertToJava(offset);  // throws the exception
+        }
+        offsets[i] = table[offset];
+      }
+    } else if(pairStarts != null) {
+      for(int i = from; i < to; i++) {
+        offsets[i] = convertToJava(offsets[i]);
+      }
+    } else {
+      for(int i = from; i < to; i++) {
+        int offset = offsets[i];
+        if(offset < 0 || offset > maxOffset) {
+          convertToJava(offset);  // throws the exception
+        }
+      }
+    }
+  }
+  
+  /**
+   * Convert all the Java offsets in the array to Python in place, in parallel.
+   * 
+   * The array is split into chunks which get converted using the common
+   * ForkJoinPool. For small arrays, this is the same as convertToPython(int[]).
+   * 
+   * @param offsets the offsets to convert
+   */
+  public void convertToPythonParallel(int[] offsets) {
+    if(offsets.length <= PARALLEL_CHUNK_SIZE) {
+      convertToPython(offsets);
+      return;
+    }
+    int nchunks = (offsets.length + PARALLEL_CHUNK_SIZE - 1) / PARALLEL_CHUNK_SIZE;
+    IntStream.range(0, nchunks).parallel().forEach(chunk -> 
+      convertToPython(offsets, chunk * PARALLEL_CHUNK_SIZE, 
+              Math.min(offsets.length, (chunk+1) * PARALLEL_CHUNK_SIZE)));
+  }
+  
+  /**
+   * Convert all the Python offsets in the array to Java in place, in parallel.
+   * 
+   * The array is split into chunks which get converted using the common
+   * ForkJoinPool. For small arrays, this is the same as convertToJava(int[]).
+   * 
+   * @param offsets the offsets to convert
+   */
+  public void convertToJavaParallel(int[] offsets) {
+    if(offsets.length <= PARALLEL_CHUNK_SIZE) {
+      convertToJava(offsets);
+      return;
     }
+    int nchunks = (offsets.length + PARALLEL_CHUNK_SIZE - 1) / PARALLEL_CHUNK_SIZE;
+    IntStream.range(0, nchunks).parallel().forEach(chunk -> 
+      convertToJava(offsets, chunk * PARALLEL_CHUNK_SIZE, 
+              Math.min(offsets.length, (chunk+1) * PARALLEL_CHUNK_SIZE)));
+  }
+  
+  private static final int PARALLEL_CHUNK_SIZE = 1 << 16;
+  
+  /**
+   * Convert the start and end offsets of all annotations in the set from 
+   * Java to Python in place.
+   * 
+   * @param annset the annotation set
+   */
+  public void convertToPython(BdocAnnotationSet annset) {
+    BdocAnnotationColumns columns = annset.columns();
+    if(columns != null) {
+      convertToPython(columns.getStarts(), 0, columns.size());
+      convertToPython(columns.getEnds(), 0, columns.size());
+      return;
+    }
+    if(annset.annotations == null) {
+      return;
+    }
+    for(BdocAnnotation ann : annset.annotations) {
+      ann.start = convertToPython(ann.start);
+      ann.end = convertToPython(ann.end);
+    }
+  }
+  
+  /**
+   * Convert the start and end offsets of all annotations in the set from 
+   * Python to Java in place.
+   * 
+   * @param annset the annotation set
+   */
+  public void convertToJava(BdocAnnotationSet annset) {
+    BdocAnnotationColumns columns = annset.columns();
+    if(columns != null) {
+      convertToJava(columns.getStarts(), 0, columns.size());
+      convertToJava(columns.getEnds(), 0, columns.size());
+      return;
+    }
+    if(annset.annotations == null) {
+      return;
+    }
+    for(BdocAnnotation ann : annset.annotations) {
+      ann.start = convertToJava(ann.start);
+      ann.end = convertToJava(ann.end);
+    }
+  }
+  
+  /**
+   * Number of surrogate pairs starting before the Java offset.
+   */
+  private int countPairsBefore(int offset) {
+    int lo = 0;
+    int hi = pairStarts.length;
+    while(lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if(pairStarts[mid] < offset) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+  
+  /**
+   * Number of surrogate pairs starting before the Python offset.
+   * 
+   * The Python offset of pair k is pairStarts[k]-k which is strictly 
+   * increasing as well.
+   */
+  private int countPythonPairsBefore(int offset) {
+    int lo = 0;
+    int hi = pairStarts.length;
+    while(lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if(pairStarts[mid] - mid < offset) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+  
+  /**
+   * Return if the sparse representation is used.
+   * 
+   * @return true if only the positions of surrogate pairs are stored
+   */
+  public boolean isSparse() {
+    return pairStarts != null;
+  }
+  
+  /**
+   * Return if the mapping is the identity. 
+   * 
+   * This is the case if the string does not contain any surrogate pairs.
+   * 
+   * @return true if Java and Python offsets are the same
+   */
+  public boolean isIdentity() {
+    return java2python == null && pairStarts == null;
   }
   
   /**
@@ -122,8 +419,9 @@ public class OffsetMapper {
    * @return the mapping as a list
    */
   public List<Integer> getJava2PythonList() {
-    List<Integer> ret = new ArrayList<>(java2python.length);
-    for(int val : java2python) {
+    int[] mapping = getJava2PythonArray();
+    List<Integer> ret = new ArrayList<>(mapping.length);
+    for(int val : mapping) {
       ret.add(val);
     }
     return ret;
@@ -135,8 +433,9 @@ public class OffsetMapper {
    * @return the mapping as a list
    */
   public List<Integer> getPython2JavaList() {
-    List<Integer> ret = new ArrayList<>(python2java.length);
-    for(int val : python2java) {
+    int[] mapping = getPython2JavaArray();
+    List<Integer> ret = new ArrayList<>(mapping.length);
+    for(int val : mapping) {
       ret.add(val);
     }
     return ret;
@@ -145,18 +444,40 @@ public class OffsetMapper {
   /**
    * Return the java to python mapping as am array of ints.
    * 
-   * @return the (original!) mapping as an array
+   * If the mapping is the identity or sparse, a new array is created on 
+   * every call. Otherwise the mapper's own array is returned, which must
+   * not be modified.
+   * 
+   * @return a new array or the mapper's own mapping array
    */
   public int[] getJava2PythonArray() {
+    if(java2python == null) {
+      int[] ret = new int[javaLength+1];
+      for(int i = 0; i <= javaLength; i++) {
+        ret[i] = convertToPython(i);
+      }
+      return ret;
+    }
     return java2python;
   }
 
   /**
-   * Return the java to python mapping as am array of ints.
+   * Return the python to java mapping as am array of ints.
    * 
-   * @return the (original!) mapping as an array
+   * If the mapping is the identity or sparse, a new array is created on 
+   * every call. Otherwise the mapper's own array is returned, which must
+   * not be modified.
+   * 
+   * @return a new array or the mapper's own mapping array
    */
   public int[] getPython2JavaArray() {
+    if(python2java == null) {
+      int[] ret = new int[pythonLength+1];
+      for(int i = 0; i <= pythonLength; i++) {
+        ret[i] = convertToJava(i);
+      }
+      return ret;
+    }
     return python2java;
   }
   
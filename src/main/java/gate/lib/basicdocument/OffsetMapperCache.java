@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Format_Bdoc
+ * (see https://github.com/GateNLP/gateplugin-Format_Bdoc).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gate.lib.basicdocument;
+
+import gate.Document;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Cache of OffsetMapper instances per GATE document.
+ *
+ * Building an OffsetMapper needs a pass over the whole document text.
+ * When the same document gets converted or updated repeatedly, e.g. by
+ * a Python client through the API, the mapper is built once and reused
+ * for as long as the text of the document does not change.
+ * <p>
+ * The documents are only weakly referenced, so the cache does not prevent
+ * them from getting garbage collected. The cached mapper remembers the
+ * text it was built for, and a new mapper is built whenever the document
+ * has a different text.
+ *
+ * @author Johann Petrak
+ */
+public class OffsetMapperCache {
+
+  private static final Map<Document, CacheEntry> CACHE =
+          Collections.synchronizedMap(new WeakHashMap<>());
+
+  private static class CacheEntry {
+    final String text;
+    final OffsetMapper mapper;
+    CacheEntry(String text, OffsetMapper mapper) {
+      this.text = text;
+      this.mapper = mapper;
+    }
+  }
+
+  private OffsetMapperCache() {}
+
+  /**
+   * Return the offset mapper for the current text of the document.
+   *
+   * @param doc the GATE document
+   * @return the offset mapper for the document content
+   */
+  public static OffsetMapper get(Document doc) {
+    return get(doc, doc.getContent().toString());
+  }
+
+  /**
+   * Return the offset mapper for the text, cached for the document.
+   *
+   * This is for when the text has already been retrieved from the
+   * document. If the text is not the current text of the document, the
+   * mapper is still correct for the text, but replaces any cached mapper.
+   *
+   * @param doc the GATE document to cache the mapper for
+   * @param text the text to map offsets for
+   * @return the offset mapper for the text
+   */
+  public static OffsetMapper get(Document doc, String text) {
+    CacheEntry entry = CACHE.get(doc);
+    // the content String of a document only gets replaced when the content
+    // changes, so this is usually an identity check
+    if(entry != null && (entry.text == text || entry.text.equals(text))) {
+      return entry.mapper;
+    }
+    OffsetMapper mapper = new OffsetMapper(text);
+    CACHE.put(doc, new CacheEntry(text, mapper));
+    return mapper;
+  }
+
+  /**
+   * Remove the cached offset mapper for the document, if there is one.
+   *
+   * @param doc the GATE document
+   */
+  public static void remove(Document doc) {
+    CACHE.remove(doc);
+  }
+
+}
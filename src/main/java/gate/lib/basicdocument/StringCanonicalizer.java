@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Format_Bdoc
+ * (see https://github.com/GateNLP/gateplugin-Format_Bdoc).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gate.lib.basicdocument;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Canonical instances for annotation types and feature names.
+ *
+ * The loaders use this so that all annotations of a type and all features
+ * with the same name share one String instance, instead of creating a new
+ * String for every annotation. The canonical strings are kept in a global
+ * map which is shared between all threads and documents. The map is bounded:
+ * once it contains MAX_ENTRIES strings, strings which are not already in
+ * the map are returned unchanged. Strings longer than MAX_LENGTH are never
+ * canonicalized.
+ *
+ * @author Johann Petrak
+ */
+public class StringCanonicalizer {
+
+  /**
+   * Maximum number of canonical strings kept.
+   */
+  public static final int MAX_ENTRIES = 100000;
+
+  /**
+   * Maximum length of a string to get canonicalized.
+   */
+  public static final int MAX_LENGTH = 100;
+
+  private static final Map<String, String> STRINGS = new ConcurrentHashMap<>();
+
+  private StringCanonicalizer() {}
+
+  /**
+   * Return the canonical instance of a string.
+   *
+   * @param str the string, may be null
+   * @return the canonical instance equal to str, or str itself
+   */
+  public static String canonicalize(String str) {
+    if(str == null || str.length() > MAX_LENGTH) {
+      return str;
+    }
+    String ret = STRINGS.get(str);
+    if(ret != null) {
+      return ret;
+    }
+    if(STRINGS.size() >= MAX_ENTRIES) {
+      return str;
+    }
+    ret = STRINGS.putIfAbsent(str, str);
+    return (ret == null) ? str : ret;
+  }
+
+  /**
+   * Return a map with the same entries where the keys are canonical.
+   *
+   * @param map the map, may be null
+   * @return a new LinkedHashMap with the same entries in the same order, or
+   * null if map is null
+   */
+  public static Map<String, Object> canonicalizeKeys(Map<String, Object> map) {
+    if(map == null) {
+      return null;
+    }
+    Map<String, Object> ret = new LinkedHashMap<>(map.size() * 4 / 3 + 1);
+    for(Map.Entry<String, Object> e : map.entrySet()) {
+      ret.put(canonicalize(e.getKey()), e.getValue());
+    }
+    return ret;
+  }
+
+}
@@ -29,5 +29,7 @@ package gate.lib.basicdocument.docformats;
 public enum Format {
   JSON_MAP, // JSON, as map
   MSGPACK,
+  MSGPACK_SM3, // MsgPack, with string table for types and feature names
+  MSGPACK_SM4, // MsgPack, like MSGPACK_SM3 with delta encoded offsets
   YAML_MAP, // YAML, as map
 }
@@ -21,8 +21,13 @@
 
 package gate.lib.basicdocument.docformats;
 
+import gate.Document;
+import gate.lib.basicdocument.BdocAnnotation;
+import gate.lib.basicdocument.BdocAnnotationSet;
 import gate.lib.basicdocument.BdocDocument;
+import gate.lib.basicdocument.BdocDocumentBuilder;
 import gate.lib.basicdocument.ChangeLog;
+import gate.lib.basicdocument.GateDocumentUpdater;
 import java.io.InputStream;
 import java.io.OutputStream;
 
@@ -36,11 +41,97 @@ import java.io.OutputStream;
  * base class will delegate to the most recent or preferred format, for loading
  * the base class will parse the input to detect which format it is in and 
  * pass controll to the appropriate subclass for the format. 
+ * <p>
+ * Implementations must be thread-safe: the instances returned by 
+ * FormatSupportRegistry are shared by all threads.
  * 
  * @author Johann Petrak
  */
 public interface FormatSupport {
   public void save(BdocDocument bdoc, OutputStream os);
+  /**
+   * Save the document described by the builder.
+   * 
+   * Formats which can do so should override this to write the GATE 
+   * annotations and features directly, without creating the BdocDocument
+   * first. By default, the BdocDocument gets built and saved.
+   * 
+   * @param builder the builder, already configured for what to include
+   * @param os stream to write to
+   */
+  public default void save(BdocDocumentBuilder builder, OutputStream os) {
+    save(builder.buildBdoc(), os);
+  }
   public BdocDocument load_bdoc(InputStream is);
+  /**
+   * Load the document with all annotation sets in columnar representation.
+   * 
+   * Formats which can do so should override this to add the annotations 
+   * to the columns while reading them. By default, the document gets loaded
+   * and the annotation sets get converted afterwards.
+   * 
+   * @param is stream to read from
+   * @return the document, all annotation sets use BdocAnnotationColumns
+   */
+  public default BdocDocument load_bdoc_columns(InputStream is) {
+    BdocDocument bdoc = load_bdoc(is);
+    if(bdoc.annotation_sets != null) {
+      for(BdocAnnotationSet annset : bdoc.annotation_sets.values()) {
+        annset.toColumns();
+      }
+    }
+    return bdoc;
+  }
+  /**
+   * Load the document and directly update a GATE document from it.
+   * 
+   * Formats which can do so should override this to pass each part to 
+   * the updater as soon as it has been read, without creating the 
+   * BdocDocument first. By default, the BdocDocument gets loaded and 
+   * then passed on to the updater.
+   * 
+   * @param is stream to read from
+   * @param gdu the updater for the GATE document, this also replaces
+   * the text of the GATE document
+   * @return the updated GATE document
+   */
+  public default Document load_bdoc(InputStream is, GateDocumentUpdater gdu) {
+    BdocDocument bdoc = load_bdoc(is);
+    gdu.setText(bdoc.text);
+    gdu.setOffsetType(bdoc.offset_type);
+    gdu.setName(bdoc.name);
+    gdu.setFeatures(bdoc.features);
+    if(bdoc.annotation_sets != null) {
+      for(BdocAnnotationSet annset : bdoc.annotation_sets.values()) {
+        for(BdocAnnotation ann : annset.annotationList()) {
+          gdu.addAnnotation(annset.name, ann);
+        }
+      }
+    }
+    return gdu.finish();
+  }
   public ChangeLog    load_log(InputStream is);
+  /**
+   * Load the ChangeLog and directly apply it to a GATE document.
+   * 
+   * Formats which can do so should override this to apply each change as
+   * soon as it has been read, without keeping the changes in memory. 
+   * By default, the ChangeLog gets loaded and then replayed.
+   * 
+   * @param is stream to read from
+   * @param gdu the updater for the GATE document
+   * @return the updated GATE document
+   */
+  public default Document load_log(InputStream is, GateDocumentUpdater gdu) {
+    return gdu.fromChangeLog(load_log(is));
+  }
+  /**
+   * Save the ChangeLog.
+   * 
+   * The saved ChangeLog can be loaded with load_log.
+   * 
+   * @param log the ChangeLog to save
+   * @param os stream to write to
+   */
+  public void save_log(ChangeLog log, OutputStream os);
 }
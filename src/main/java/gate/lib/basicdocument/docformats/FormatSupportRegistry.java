@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2019 The University of Sheffield.
+ *
+ * This file is part of gateplugin-Format_Bdoc
+ * (see https://github.com/GateNLP/gateplugin-Format_Bdoc).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gate.lib.basicdocument.docformats;
+
+import gate.util.GateRuntimeException;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Shared FormatSupport instances for all formats.
+ *
+ * Creating a FormatSupport instance creates and configures the underlying
+ * Jackson or SnakeYAML objects, which then cache serializers and other
+ * information once they have been used. This registry keeps one instance
+ * per format which is shared between all users and threads, so that this
+ * work is only done once.
+ *
+ * @author Johann Petrak
+ */
+public class FormatSupportRegistry {
+
+  private static final Map<Format, FormatSupport> FORMAT_SUPPORTS =
+          new EnumMap<>(Format.class);
+
+  static {
+    FORMAT_SUPPORTS.put(Format.JSON_MAP, new JsonFormatSupportMap());
+    FORMAT_SUPPORTS.put(Format.YAML_MAP, new YamlFormatSupportMap());
+    FORMAT_SUPPORTS.put(Format.MSGPACK, new MsgPackFormatSupport());
+    FORMAT_SUPPORTS.put(Format.MSGPACK_SM3, 
+            new MsgPackFormatSupport(MsgPackFormatSupport.VERSION3));
+    FORMAT_SUPPORTS.put(Format.MSGPACK_SM4, 
+            new MsgPackFormatSupport(MsgPackFormatSupport.VERSION4));
+  }
+
+  private FormatSupportRegistry() {}
+
+  /**
+   * Return the shared FormatSupport instance for the format.
+   *
+   * @param fmt the format
+   * @return the thread-safe FormatSupport instance for that format
+   */
+  public static FormatSupport get(Format fmt) {
+    FormatSupport fs = FORMAT_SUPPORTS.get(fmt);
+    if(fs == null) {
+      throw new GateRuntimeException("No FormatSupport for format "+fmt);
+    }
+    return fs;
+  }
+
+}
@@ -21,14 +21,35 @@
 
 package gate.lib.basicdocument.docformats;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import gate.Annotation;
+import gate.Document;
+import gate.lib.basicdocument.BdocAnnotation;
+import gate.lib.basicdocument.BdocAnnotationColumns;
+import gate.lib.basicdocument.BdocAnnotationSet;
 import gate.lib.basicdocument.BdocDocument;
+import gate.lib.basicdocument.BdocDocumentBuilder;
+import gate.lib.basicdocument.Change;
 import gate.lib.basicdocument.ChangeLog;
+import gate.lib.basicdocument.GateDocumentUpdater;
+import gate.lib.basicdocument.OffsetMapper;
+import gate.lib.basicdocument.StringCanonicalizer;
 import gate.util.GateRuntimeException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * How to serialize/deserialize JSON Map format.
@@ -43,41 +64,749 @@ public class JsonFormatSupportMap implements FormatSupport {
     om = new ObjectMapper();
     om.configure(DeserializationFeature.FAIL_ON_IGNORED_PROPERTIES, false);
     om.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    // we write values through our own generator and only flush at the end
+    om.configure(SerializationFeature.FLUSH_AFTER_WRITE_VALUE, false);
   }
   
+  /**
+   * Save the document as a JSON map.
+   * 
+   * This writes the document directly with a JsonGenerator, in the same
+   * field order and with the same values as Jackson databind would for 
+   * the BdocDocument instance.
+   * 
+   * @param bdoc document to save
+   * @param os the stream to write to
+   */
   @Override
   public void save(BdocDocument bdoc, OutputStream os) {
-    try {
-      om.writeValue(os, bdoc);
+    try (JsonGenerator gen = om.getFactory().createGenerator(os, JsonEncoding.UTF8)) {
+      gen.writeStartObject();
+      gen.writeFieldName("features");
+      writeValue(gen, bdoc.features);
+      gen.writeFieldName("text");
+      writeString(gen, bdoc.text);
+      gen.writeFieldName("name");
+      writeString(gen, bdoc.name);
+      gen.writeFieldName("offset_type");
+      writeString(gen, bdoc.offset_type);
+      gen.writeFieldName("annotation_sets");
+      if(bdoc.annotation_sets == null) {
+        gen.writeNull();
+      } else {
+        gen.writeStartObject();
+        for(Map.Entry<String, BdocAnnotationSet> e : bdoc.annotation_sets.entrySet()) {
+          gen.writeFieldName(e.getKey());
+          writeAnnotationSet(gen, e.getValue());
+        }
+        gen.writeEndObject();
+      }
+      gen.writeEndObject();
     } catch (IOException ex) {
       ex.printStackTrace(System.err);
       throw new GateRuntimeException("Could not convert Bdoc to JSON map", ex);
     }
   }
+  
+  /**
+   * Save the document described by the builder as a JSON map.
+   * 
+   * This writes the GATE annotations and features directly, without 
+   * creating BdocAnnotation instances or copying feature maps first. 
+   * The result is the same as saving the document returned by 
+   * builder.buildBdoc().
+   * 
+   * @param builder the builder
+   * @param os the stream to write to
+   */
+  @Override
+  public void save(BdocDocumentBuilder builder, OutputStream os) {
+    try (JsonGenerator gen = om.getFactory().createGenerator(os, JsonEncoding.UTF8)) {
+      gen.writeStartObject();
+      gen.writeFieldName("features");
+      writeValue(gen, builder.getFeatures());
+      gen.writeFieldName("text");
+      writeString(gen, builder.getText());
+      gen.writeFieldName("name");
+      writeString(gen, builder.getName());
+      gen.writeFieldName("offset_type");
+      writeString(gen, builder.getOffsetType());
+      gen.writeFieldName("annotation_sets");
+      List<String> setnames = builder.getAnnotationSetNames();
+      if(setnames == null) {
+        gen.writeNull();
+      } else {
+        OffsetMapper mapper = builder.getOffsetMapper();
+        gen.writeStartObject();
+        for(String setname : setnames) {
+          gen.writeFieldName(setname);
+          gen.writeStartObject();
+          gen.writeFieldName("name");
+          gen.writeString(setname);
+          gen.writeFieldName("annotations");
+          gen.writeStartArray();
+          int next_annid = 0;
+          for(Annotation ann : builder.getAnnotations(setname)) {
+            writeGateAnnotation(gen, ann, mapper);
+            if(ann.getId() >= next_annid) {
+              next_annid = ann.getId() + 1;
+            }
+          }
+          gen.writeEndArray();
+          gen.writeFieldName("next_annid");
+          gen.writeNumber(builder.getNextAnnotationId(setname, next_annid));
+          gen.writeEndObject();
+        }
+        gen.writeEndObject();
+      }
+      gen.writeEndObject();
+    } catch (IOException ex) {
+      ex.printStackTrace(System.err);
+      throw new GateRuntimeException("Could not convert GATE document to JSON map", ex);
+    }
+  }
+  
+  private void writeGateAnnotation(JsonGenerator gen, Annotation ann, OffsetMapper mapper) 
+          throws IOException {
+    int start = ann.getStartNode().getOffset().intValue();
+    int end = ann.getEndNode().getOffset().intValue();
+    if(mapper != null) {
+      start = mapper.convertToPython(start);
+      end = mapper.convertToPython(end);
+    }
+    gen.writeStartObject();
+    gen.writeFieldName("features");
+    gen.writeStartObject();
+    for(Map.Entry<Object, Object> e : ann.getFeatures().entrySet()) {
+      Object key = e.getKey();
+      if(key == null) {
+        continue;
+      }
+      gen.writeFieldName((key instanceof String) ? (String)key : key.toString());
+      writeValue(gen, e.getValue());
+    }
+    gen.writeEndObject();
+    gen.writeFieldName("type");
+    writeString(gen, ann.getType());
+    gen.writeFieldName("id");
+    writeInteger(gen, ann.getId());
+    gen.writeFieldName("start");
+    gen.writeNumber(start);
+    gen.writeFieldName("end");
+    gen.writeNumber(end);
+    gen.writeEndObject();
+  }
+  
+  private void writeAnnotationSet(JsonGenerator gen, BdocAnnotationSet annset) throws IOException {
+    if(annset == null) {
+      gen.writeNull();
+      return;
+    }
+    gen.writeStartObject();
+    gen.writeFieldName("name");
+    writeString(gen, annset.name);
+    gen.writeFieldName("annotations");
+    BdocAnnotationColumns columns = annset.columns();
+    if(columns != null) {
+      gen.writeStartArray();
+      for(int i = 0; i < columns.size(); i++) {
+        gen.writeStartObject();
+        gen.writeFieldName("features");
+        writeValue(gen, columns.getFeatures(i));
+        gen.writeFieldName("type");
+        writeString(gen, columns.getType(i));
+        gen.writeFieldName("id");
+        writeInteger(gen, columns.getId(i));
+        gen.writeFieldName("start");
+        gen.writeNumber(columns.getStart(i));
+        gen.writeFieldName("end");
+        gen.writeNumber(columns.getEnd(i));
+        gen.writeEndObject();
+      }
+      gen.writeEndArray();
+    } else if(annset.annotations == null) {
+      gen.writeNull();
+    } else {
+      gen.writeStartArray();
+      for(BdocAnnotation ann : annset.annotations) {
+        writeAnnotation(gen, ann);
+      }
+      gen.writeEndArray();
+    }
+    gen.writeFieldName("next_annid");
+    writeInteger(gen, annset.next_annid);
+    gen.writeEndObject();
+  }
+  
+  private void writeAnnotation(JsonGenerator gen, BdocAnnotation ann) throws IOException {
+    if(ann == null) {
+      gen.writeNull();
+      return;
+    }
+    gen.writeStartObject();
+    gen.writeFieldName("features");
+    writeValue(gen, ann.features);
+    gen.writeFieldName("type");
+    writeString(gen, ann.type);
+    gen.writeFieldName("id");
+    writeInteger(gen, ann.id);
+    gen.writeFieldName("start");
+    gen.writeNumber(ann.start);
+    gen.writeFieldName("end");
+    gen.writeNumber(ann.end);
+    gen.writeEndObject();
+  }
+  
+  private void writeString(JsonGenerator gen, String str) throws IOException {
+    if(str == null) {
+      gen.writeNull();
+    } else {
+      gen.writeString(str);
+    }
+  }
+  
+  private void writeInteger(JsonGenerator gen, Integer val) throws IOException {
+    if(val == null) {
+      gen.writeNull();
+    } else {
+      gen.writeNumber(val);
+    }
+  }
+  
+  /**
+   * Write an arbitrary value.
+   * 
+   * The types which normally occur as feature values are written directly,
+   * anything else is handed over to Jackson databind.
+   * 
+   * @param gen the generator to use
+   * @param value the value to write
+   * @throws IOException if an error occurs
+   */
+  private void writeValue(JsonGenerator gen, Object value) throws IOException {
+    if(value == null) {
+      gen.writeNull();
+    } else if(value instanceof String) {
+      gen.writeString((String)value);
+    } else if(value instanceof Integer) {
+      gen.writeNumber((Integer)value);
+    } else if(value instanceof Long) {
+      gen.writeNumber((Long)value);
+    } else if(value instanceof Double) {
+      gen.writeNumber((Double)value);
+    } else if(value instanceof Float) {
+      gen.writeNumber((Float)value);
+    } else if(value instanceof Boolean) {
+      gen.writeBoolean((Boolean)value);
+    } else if(value instanceof Map) {
+      gen.writeStartObject();
+      for(Map.Entry<?,?> e : ((Map<?,?>)value).entrySet()) {
+        Object key = e.getKey();
+        if(key == null) {
+          continue;
+        }
+        gen.writeFieldName((key instanceof String) ? (String)key : key.toString());
+        writeValue(gen, e.getValue());
+      }
+      gen.writeEndObject();
+    } else if(value instanceof Collection) {
+      gen.writeStartArray();
+      for(Object el : (Collection<?>)value) {
+        writeValue(gen, el);
+      }
+      gen.writeEndArray();
+    } else {
+      gen.writeObject(value);
+    }
+  }
 
+  /**
+   * Load a document from a JSON map.
+   * 
+   * This reads the JSON token by token and fills in the BdocDocument, 
+   * BdocAnnotationSet and BdocAnnotation instances directly. Fields can be
+   * in any order, unknown fields are ignored. 
+   * 
+   * @param is the stream to read from
+   * @return the document
+   */
   @Override
   public BdocDocument load_bdoc(InputStream is) {
     BdocDocument bdoc;
-    try {
-      bdoc = om.readValue(is, BdocDocument.class);
+    try (JsonParser parser = om.getFactory().createParser(is)) {
+      expectToken(parser, parser.nextToken(), JsonToken.START_OBJECT);
+      bdoc = readDocument(parser, false);
+    } catch (IOException ex) {
+      ex.printStackTrace(System.err);
+      throw new GateRuntimeException("Could not convert JSON map to Bdoc", ex);
+    }
+    return bdoc;
+  }
+  
+  /**
+   * Load a document from a JSON map with columnar annotation sets.
+   * 
+   * Each annotation is added to the columns as soon as it has been read.
+   * 
+   * @param is the stream to read from
+   * @return the document
+   */
+  @Override
+  public BdocDocument load_bdoc_columns(InputStream is) {
+    BdocDocument bdoc;
+    try (JsonParser parser = om.getFactory().createParser(is)) {
+      expectToken(parser, parser.nextToken(), JsonToken.START_OBJECT);
+      bdoc = readDocument(parser, true);
     } catch (IOException ex) {
       ex.printStackTrace(System.err);
       throw new GateRuntimeException("Could not convert JSON map to Bdoc", ex);
     }
     return bdoc;
   }
+  
+  /**
+   * Load a document from a JSON map and directly update the GATE document.
+   * 
+   * Each annotation is passed on to the updater as soon as it has been 
+   * read. The annotation set names are taken from the keys of the 
+   * "annotation_sets" map.
+   * 
+   * @param is the stream to read from
+   * @param gdu the updater
+   * @return the updated GATE document
+   */
+  @Override
+  public Document load_bdoc(InputStream is, GateDocumentUpdater gdu) {
+    try (JsonParser parser = om.getFactory().createParser(is)) {
+      expectToken(parser, parser.nextToken(), JsonToken.START_OBJECT);
+      while(parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+        switch(field) {
+          case "features":
+            gdu.setFeatures(readMap(parser));
+            break;
+          case "text":
+            gdu.setText(readString(parser));
+            break;
+          case "name":
+            gdu.setName(readString(parser));
+            break;
+          case "offset_type":
+            gdu.setOffsetType(readString(parser));
+            break;
+          case "annotation_sets":
+            if(token != JsonToken.VALUE_NULL) {
+              expectToken(parser, token, JsonToken.START_OBJECT);
+              while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                String setname = parser.getCurrentName();
+                parser.nextToken();
+                readAnnotationSet(parser, setname, gdu);
+              }
+            }
+            break;
+          default:
+            parser.skipChildren();
+        }
+      }
+    } catch (IOException ex) {
+      ex.printStackTrace(System.err);
+      throw new GateRuntimeException("Could not convert JSON map to Bdoc", ex);
+    }
+    return gdu.finish();
+  }
+  
+  private void readAnnotationSet(JsonParser parser, String setname, GateDocumentUpdater gdu) 
+          throws IOException {
+    if(parser.currentToken() == JsonToken.VALUE_NULL) {
+      return;
+    }
+    expectToken(parser, parser.currentToken(), JsonToken.START_OBJECT);
+    while(parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      JsonToken token = parser.nextToken();
+      if("annotations".equals(field) && token != JsonToken.VALUE_NULL) {
+        expectToken(parser, token, JsonToken.START_ARRAY);
+        while(parser.nextToken() != JsonToken.END_ARRAY) {
+          gdu.addAnnotation(setname, readAnnotation(parser));
+        }
+      } else {
+        parser.skipChildren();
+      }
+    }
+  }
+  
+  private BdocDocument readDocument(JsonParser parser, boolean columnar) throws IOException {
+    BdocDocument bdoc = new BdocDocument();
+    while(parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      JsonToken token = parser.nextToken();
+      switch(field) {
+        case "features":
+          bdoc.features = readMap(parser);
+          break;
+        case "text":
+          bdoc.text = readString(parser);
+          break;
+        case "name":
+          bdoc.name = readString(parser);
+          break;
+        case "offset_type":
+          bdoc.offset_type = readString(parser);
+          break;
+        case "annotation_sets":
+          if(token == JsonToken.VALUE_NULL) {
+            bdoc.annotation_sets = null;
+          } else {
+            expectToken(parser, token, JsonToken.START_OBJECT);
+            bdoc.annotation_sets = new LinkedHashMap<>();
+            while(parser.nextToken() == JsonToken.FIELD_NAME) {
+              String setname = parser.getCurrentName();
+              parser.nextToken();
+              bdoc.annotation_sets.put(setname, readAnnotationSet(parser, columnar));
+            }
+          }
+          break;
+        default:
+          parser.skipChildren();
+      }
+    }
+    return bdoc;
+  }
+  
+  private BdocAnnotationSet readAnnotationSet(JsonParser parser, boolean columnar) throws IOException {
+    if(parser.currentToken() == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    expectToken(parser, parser.currentToken(), JsonToken.START_OBJECT);
+    BdocAnnotationSet annset = new BdocAnnotationSet();
+    while(parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      JsonToken token = parser.nextToken();
+      switch(field) {
+        case "name":
+          annset.name = readString(parser);
+          break;
+        case "next_annid":
+          annset.next_annid = readInteger(parser);
+          break;
+        case "annotations":
+          if(token == JsonToken.VALUE_NULL) {
+            annset.annotations = null;
+          } else {
+            expectToken(parser, token, JsonToken.START_ARRAY);
+            if(columnar) {
+              BdocAnnotationColumns columns = new BdocAnnotationColumns();
+              while(parser.nextToken() != JsonToken.END_ARRAY) {
+                columns.add(readAnnotation(parser));
+              }
+              annset = BdocAnnotationSet.fromColumns(
+                      annset.name, columns, annset.next_annid);
+            } else {
+              annset.annotations = new ArrayList<>();
+              while(parser.nextToken() != JsonToken.END_ARRAY) {
+                annset.annotations.add(readAnnotation(parser));
+              }
+            }
+          }
+          break;
+        default:
+          parser.skipChildren();
+      }
+    }
+    if(columnar) {
+      annset.toColumns();
+    }
+    return annset;
+  }
+  
+  private BdocAnnotation readAnnotation(JsonParser parser) throws IOException {
+    if(parser.currentToken() == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    expectToken(parser, parser.currentToken(), JsonToken.START_OBJECT);
+    BdocAnnotation ann = new BdocAnnotation();
+    while(parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      parser.nextToken();
+      switch(field) {
+        case "features":
+          ann.features = readMap(parser);
+          break;
+        case "type":
+          // feature names are field names, which the parser already interns
+          ann.type = StringCanonicalizer.canonicalize(readString(parser));
+          break;
+        case "id":
+          ann.id = readInteger(parser);
+          break;
+        case "start":
+          ann.start = parser.getValueAsInt();
+          break;
+        case "end":
+          ann.end = parser.getValueAsInt();
+          break;
+        default:
+          parser.skipChildren();
+      }
+    }
+    return ann;
+  }
+  
+  private void expectToken(JsonParser parser, JsonToken actual, JsonToken expected) 
+          throws JsonParseException {
+    if(actual != expected) {
+      throw new JsonParseException(parser, "Expected "+expected+" but got "+actual);
+    }
+  }
+  
+  private String readString(JsonParser parser) throws IOException {
+    JsonToken token = parser.currentToken();
+    if(token == JsonToken.VALUE_NULL) {
+      return null;
+    } else if(token.isScalarValue()) {
+      return parser.getValueAsString();
+    } else {
+      throw new JsonParseException(parser, "Expected a String but got "+token);
+    }
+  }
+  
+  private Integer readInteger(JsonParser parser) throws IOException {
+    if(parser.currentToken() == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    return parser.getValueAsInt();
+  }
+  
+  @SuppressWarnings("unchecked")
+  private Map<String, Object> readMap(JsonParser parser) throws IOException {
+    JsonToken token = parser.currentToken();
+    if(token == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    expectToken(parser, token, JsonToken.START_OBJECT);
+    return (Map<String, Object>)readValue(parser);
+  }
+  
+  /**
+   * Read an arbitrary value starting with the current token.
+   * 
+   * This creates the same types as Jackson databind when reading into an 
+   * Object: LinkedHashMap for objects, ArrayList for arrays, the smallest of 
+   * Integer, Long, BigInteger for integers and Double for floats.
+   * 
+   * @param parser the parser
+   * @return the value
+   * @throws IOException if an error occurs
+   */
+  private Object readValue(JsonParser parser) throws IOException {
+    JsonToken token = parser.currentToken();
+    switch(token) {
+      case START_OBJECT:
+        Map<String, Object> map = new LinkedHashMap<>();
+        while(parser.nextToken() == JsonToken.FIELD_NAME) {
+          String key = parser.getCurrentName();
+          parser.nextToken();
+          map.put(key, readValue(parser));
+        }
+        return map;
+      case START_ARRAY:
+        List<Object> list = new ArrayList<>();
+        while(parser.nextToken() != JsonToken.END_ARRAY) {
+          list.add(readValue(parser));
+        }
+        return list;
+      case VALUE_STRING:
+        return parser.getText();
+      case VALUE_NUMBER_INT:
+        return parser.getNumberValue();
+      case VALUE_NUMBER_FLOAT:
+        return parser.getDoubleValue();
+      case VALUE_TRUE:
+        return Boolean.TRUE;
+      case VALUE_FALSE:
+        return Boolean.FALSE;
+      case VALUE_NULL:
+        return null;
+      case VALUE_EMBEDDED_OBJECT:
+        return parser.getEmbeddedObject();
+      default:
+        throw new JsonParseException(parser, "Unexpected token "+token);
+    }
+  }
 
+  /**
+   * Save the ChangeLog as a JSON map.
+   * 
+   * The offset type is written before the changes, so that the changes 
+   * can be applied while they are read, see load_log(InputStream, 
+   * GateDocumentUpdater).
+   * 
+   * @param log the ChangeLog
+   * @param os the stream to write to
+   */
+  @Override
+  public void save_log(ChangeLog log, OutputStream os) {
+    try (JsonGenerator gen = om.getFactory().createGenerator(os, JsonEncoding.UTF8)) {
+      gen.writeStartObject();
+      gen.writeFieldName("offset_type");
+      writeString(gen, log.offset_type);
+      gen.writeFieldName("changes");
+      gen.writeStartArray();
+      for(Map<String, Object> chg : log.changeMaps()) {
+        writeValue(gen, chg);
+      }
+      gen.writeEndArray();
+      gen.writeEndObject();
+    } catch (IOException ex) {
+      ex.printStackTrace(System.err);
+      throw new GateRuntimeException("Could not convert ChangeLog to JSON map", ex);
+    }
+  }
+  
+  /**
+   * Load a ChangeLog from a JSON map.
+   * 
+   * Each change is read directly into a typed Change instance.
+   * 
+   * @param is the stream to read from
+   * @return the ChangeLog
+   */
   @Override
   public ChangeLog load_log(InputStream is) {
     ChangeLog log;
-    try {
-      log = om.readValue(is, ChangeLog.class);
+    try (JsonParser parser = om.getFactory().createParser(is)) {
+      expectToken(parser, parser.nextToken(), JsonToken.START_OBJECT);
+      log = readChangeLog(parser);
     } catch (IOException ex) {
       ex.printStackTrace(System.err);
       throw new GateRuntimeException("Could not convert JSON map to ChangeLog", ex);
     }
     return log;    
   }
-
+  
+  /**
+   * Load a ChangeLog from a JSON map and directly apply it to the GATE 
+   * document.
+   * 
+   * Each change is applied as soon as it has been read. If the offset type
+   * only comes after the changes and the document text contains surrogate
+   * pairs, the changes get buffered until the offset type is known. 
+   * 
+   * @param is the stream to read from
+   * @param gdu the updater
+   * @return the updated GATE document
+   */
+  @Override
+  public Document load_log(InputStream is, GateDocumentUpdater gdu) {
+    try (JsonParser parser = om.getFactory().createParser(is)) {
+      expectToken(parser, parser.nextToken(), JsonToken.START_OBJECT);
+      while(parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+        switch(field) {
+          case "offset_type":
+            gdu.setOffsetType(readString(parser));
+            break;
+          case "changes":
+            if(token != JsonToken.VALUE_NULL) {
+              expectToken(parser, token, JsonToken.START_ARRAY);
+              while(parser.nextToken() != JsonToken.END_ARRAY) {
+                Change chg = readChange(parser);
+                if(chg != null) {
+                  gdu.addChange(chg);
+                }
+              }
+            }
+            break;
+          default:
+            parser.skipChildren();
+        }
+      }
+    } catch (IOException ex) {
+      ex.printStackTrace(System.err);
+      throw new GateRuntimeException("Could not convert JSON map to ChangeLog", ex);
+    }
+    return gdu.finish();
+  }
+  
+  private ChangeLog readChangeLog(JsonParser parser) throws IOException {
+    List<Change> entries = new ArrayList<>();
+    String offset_type = "j";
+    while(parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      JsonToken token = parser.nextToken();
+      switch(field) {
+        case "offset_type":
+          offset_type = readString(parser);
+          break;
+        case "changes":
+          if(token != JsonToken.VALUE_NULL) {
+            expectToken(parser, token, JsonToken.START_ARRAY);
+            while(parser.nextToken() != JsonToken.END_ARRAY) {
+              Change chg = readChange(parser);
+              if(chg != null) {
+                entries.add(chg);
+              }
+            }
+          }
+          break;
+        default:
+          parser.skipChildren();
+      }
+    }
+    return ChangeLog.fromEntries(entries, offset_type);
+  }
+  
+  /**
+   * Read a change, returns null for a change with an unknown command.
+   */
+  private Change readChange(JsonParser parser) throws IOException {
+    expectToken(parser, parser.currentToken(), JsonToken.START_OBJECT);
+    Change chg = new Change();
+    String command = null;
+    while(parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      JsonToken token = parser.nextToken();
+      switch(field) {
+        case "command":
+          command = readString(parser);
+          break;
+        case "set":
+          chg.set = StringCanonicalizer.canonicalize(readString(parser));
+          break;
+        case "id":
+          if(token != JsonToken.VALUE_NULL) {
+            chg.id = parser.getValueAsInt();
+          }
+          break;
+        case "start":
+          chg.start = parser.getValueAsInt();
+          break;
+        case "end":
+          chg.end = parser.getValueAsInt();
+          break;
+        case "type":
+          chg.type = StringCanonicalizer.canonicalize(readString(parser));
+          break;
+        case "features":
+          chg.features = readMap(parser);
+          break;
+        case "feature":
+          chg.feature = StringCanonicalizer.canonicalize(readString(parser));
+          break;
+        case "value":
+          chg.value = readValue(parser);
+          break;
+        case "name":
+          chg.name = readString(parser);
+          break;
+        default:
+          parser.skipChildren();
+      }
+    }
+    chg.command = Change.Command.fromName(command);
+    return (chg.command == null) ? null : chg;
+  }
 
 }
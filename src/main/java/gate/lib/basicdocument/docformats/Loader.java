@@ -20,8 +20,10 @@
 
 package gate.lib.basicdocument.docformats;
 
+import gate.Document;
 import gate.lib.basicdocument.BdocDocument;
 import gate.lib.basicdocument.ChangeLog;
+import gate.lib.basicdocument.GateDocumentUpdater;
 import gate.util.GateRuntimeException;
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
@@ -41,6 +43,7 @@ public class Loader {
   protected boolean haveSrc = false;
   protected boolean haveFormat = false;
   protected boolean gzipped = false;
+  protected boolean columnar = false;
   protected File file = null;
   protected URL url = null;
   protected InputStream is = null; 
@@ -101,30 +104,28 @@ public class Loader {
     gzipped = flag;
     return this;
   }
+  /**
+   * Load the annotation sets in columnar representation.
+   * 
+   * If set, all annotation sets of the loaded BdocDocument store their 
+   * annotations in BdocAnnotationColumns instead of a list of 
+   * BdocAnnotation instances.
+   * 
+   * @param flag true to load columnar annotation sets
+   * @return this loader
+   */
+  public Loader columnar(boolean flag) {
+    columnar = flag;
+    return this;
+  }
   public BdocDocument load_bdoc() {
     checkHaveNeeded();
     try {
-      if(fromString != null) {
-        if(format == Format.MSGPACK) {
-          throw new GateRuntimeException("Cannot use MsgPack with String source");
-        }
-        is = new ByteArrayInputStream(fromString.getBytes("utf-8"));
-      } else if(file != null) {
-        is = new BufferedInputStream(new FileInputStream(file));
-      } else if(url != null) {
-        is = url.openStream();
-      }
-      if(gzipped) {
-        is = new GZIPInputStream(is);
-      }
-      switch (format) {
-        case JSON_MAP:
-          return new JsonFormatSupportMap().load_bdoc(is);
-        case YAML_MAP:
-          return new YamlFormatSupportMap().load_bdoc(is);
-        default:
-          return new MsgPackFormatSupport().load_bdoc(is);
+      openStream();
+      if(columnar) {
+        return FormatSupportRegistry.get(format).load_bdoc_columns(is);
       }
+      return FormatSupportRegistry.get(format).load_bdoc(is);
     } catch (IOException ex) {
       throw new GateRuntimeException("Could not load", ex);
     } finally {
@@ -139,30 +140,56 @@ public class Loader {
     
   }
   
-    public ChangeLog load_log() {
+  /**
+   * Load the document and directly update a GATE document from it.
+   * 
+   * For JSON and MsgPack, the annotations are added to the GATE document 
+   * while they are read, without creating a BdocDocument first.
+   * 
+   * @param gdu the updater for the GATE document, this also replaces the 
+   * text of the GATE document
+   * @return the updated GATE document
+   */
+  public Document load_bdoc(GateDocumentUpdater gdu) {
     checkHaveNeeded();
     try {
-      if(fromString != null) {
-        if(format == Format.MSGPACK) {
-          throw new GateRuntimeException("Cannot use MsgPack with String source");
+      openStream();
+      return FormatSupportRegistry.get(format).load_bdoc(is, gdu);
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not load", ex);
+    } finally {
+      if(is != null) {
+        try {
+          is.close();
+        } catch(IOException ex) {
+          // ignore
         }
-        is = new ByteArrayInputStream(fromString.getBytes("utf-8"));
-      } else if(file != null) {
-        is = new BufferedInputStream(new FileInputStream(file));
-      } else if(url != null) {
-        is = url.openStream();
-      }
-      if(gzipped) {
-        is = new GZIPInputStream(is);
       }
-      switch (format) {
-        case JSON_MAP:
-          return new JsonFormatSupportMap().load_log(is);
-        case YAML_MAP:
-          return new YamlFormatSupportMap().load_log(is);
-        default:
-          return new MsgPackFormatSupport().load_log(is);
+    }
+  }
+  
+  private void openStream() throws IOException {
+    if(fromString != null) {
+      if(format == Format.MSGPACK || format == Format.MSGPACK_SM3 ||
+         format == Format.MSGPACK_SM4) {
+        throw new GateRuntimeException("Cannot use MsgPack with String source");
       }
+      is = new ByteArrayInputStream(fromString.getBytes("utf-8"));
+    } else if(file != null) {
+      is = new BufferedInputStream(new FileInputStream(file));
+    } else if(url != null) {
+      is = url.openStream();
+    }
+    if(gzipped) {
+      is = new GZIPInputStream(is);
+    }
+  }
+  
+    public ChangeLog load_log() {
+    checkHaveNeeded();
+    try {
+      openStream();
+      return FormatSupportRegistry.get(format).load_log(is);
     } catch (IOException ex) {
       throw new GateRuntimeException("Could not load", ex);
     } finally {
@@ -176,6 +203,33 @@ public class Loader {
     }
     
   }
+  
+  /**
+   * Load the ChangeLog and directly apply it to a GATE document.
+   * 
+   * For JSON and MsgPack, each change is applied while it is read, without
+   * loading the whole ChangeLog into memory first.
+   * 
+   * @param gdu the updater for the GATE document
+   * @return the updated GATE document
+   */
+  public Document load_log(GateDocumentUpdater gdu) {
+    checkHaveNeeded();
+    try {
+      openStream();
+      return FormatSupportRegistry.get(format).load_log(is, gdu);
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not load", ex);
+    } finally {
+      if(is != null) {
+        try {
+          is.close();
+        } catch(IOException ex) {
+          // ignore
+        }
+      }
+    }
+  }
 
   
 }
@@ -20,20 +20,40 @@
 package gate.lib.basicdocument.docformats;
 
 import com.fasterxml.jackson.core.JsonGenerator;
-import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import gate.Annotation;
+import gate.Document;
 import gate.lib.basicdocument.BdocAnnotation;
+import gate.lib.basicdocument.BdocAnnotationColumns;
 import gate.lib.basicdocument.BdocAnnotationSet;
 import gate.lib.basicdocument.BdocDocument;
+import gate.lib.basicdocument.BdocDocumentBuilder;
+import gate.lib.basicdocument.Change;
 import gate.lib.basicdocument.ChangeLog;
+import gate.lib.basicdocument.GateDocumentUpdater;
+import gate.lib.basicdocument.OffsetMapper;
+import gate.lib.basicdocument.StringCanonicalizer;
 import gate.util.GateRuntimeException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.IntUnaryOperator;
+import org.msgpack.core.ExtensionTypeHeader;
+import org.msgpack.core.MessageFormat;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessagePackException;
+import org.msgpack.core.MessagePacker;
+import org.msgpack.core.MessageUnpacker;
+import org.msgpack.jackson.dataformat.MessagePackExtensionType;
 import org.msgpack.jackson.dataformat.MessagePackFactory;
 
 /**
@@ -44,105 +64,944 @@ import org.msgpack.jackson.dataformat.MessagePackFactory;
 public class MsgPackFormatSupport implements FormatSupport {
 
   public static final String VERSION = "sm2"; // Simple MsgPack 2
+  /**
+   * Simple MsgPack 3: like sm2, but annotation types and feature names 
+   * are written as a string the first time they occur and as the index of
+   * that first occurrence afterwards.
+   */
+  public static final String VERSION3 = "sm3";
+  /**
+   * Simple MsgPack 4: like sm3, but the annotations of each set are written
+   * sorted by start offset, with the difference to the previous start 
+   * offset and the length of the annotation instead of the start and end
+   * offsets. Both are small non-negative numbers which MsgPack stores in 
+   * fewer bytes.
+   */
+  public static final String VERSION4 = "sm4";
   
   private ObjectMapper initObjectMapper4Dump() {
     ObjectMapper om = new ObjectMapper(new MessagePackFactory());
     om.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
     return om;
   }
-  private ObjectMapper initObjectMapper4Load() {
-    ObjectMapper om = new ObjectMapper(new MessagePackFactory());
-    om.configure(JsonParser.Feature.AUTO_CLOSE_SOURCE, false);
-    return om;
-  }  
   
+  /**
+   * Create the format support which saves in "sm2" format.
+   */
   public MsgPackFormatSupport() {
-    omLoad = initObjectMapper4Load();
+    this(VERSION);
+  }
+  
+  /**
+   * Create the format support which saves in the given format version.
+   * 
+   * Loading always supports all versions.
+   * 
+   * @param version the version to save, one of VERSION, VERSION3, VERSION4
+   */
+  public MsgPackFormatSupport(String version) {
+    if(!VERSION.equals(version) && !VERSION3.equals(version) && !VERSION4.equals(version)) {
+      throw new GateRuntimeException("Unknown MsgPack format version "+version);
+    }
+    this.version = version;
     omDump = initObjectMapper4Dump();
   }
   
-  ObjectMapper omLoad;
   ObjectMapper omDump;
   
+  private final String version;
+  
+  /**
+   * The strings written so far for "sm3" and "sm4", mapped to their index.
+   */
+  private static class StringTableWriter {
+    private final Map<String, Integer> indices = new HashMap<>();
+    void pack(MessagePacker packer, String str) throws IOException {
+      if(str == null) {
+        packer.packNil();
+        return;
+      }
+      Integer index = indices.get(str);
+      if(index == null) {
+        indices.put(str, indices.size());
+        packer.packString(str);
+      } else {
+        packer.packInt(index);
+      }
+    }
+  }
+  
+  /**
+   * The strings read so far for "sm3" and "sm4", in the order of their index.
+   */
+  private static class StringTableReader {
+    private final List<String> strings = new ArrayList<>();
+    String unpack(MessageUnpacker unpacker) throws IOException {
+      MessageFormat mf = unpacker.getNextFormat();
+      switch(mf.getValueType()) {
+        case NIL:
+          unpacker.unpackNil();
+          return null;
+        case STRING:
+          String str = StringCanonicalizer.canonicalize(unpacker.unpackString());
+          strings.add(str);
+          return str;
+        case INTEGER:
+          int index = unpacker.unpackInt();
+          if(index < 0 || index >= strings.size()) {
+            throw new GateRuntimeException("Invalid string table index "+index);
+          }
+          return strings.get(index);
+        default:
+          throw new GateRuntimeException("Expected string or string table index, got "+mf.getValueType());
+      }
+    }
+  }
+  
+  /**
+   * How to decode the annotations of the document being read.
+   */
+  private static class Decoder {
+    /**
+     * The string table, null for "sm2".
+     */
+    StringTableReader strings;
+    /**
+     * If offsets are delta encoded, for "sm4".
+     */
+    boolean delta;
+    /**
+     * The start offset of the previous annotation in the set, for "sm4".
+     */
+    int lastStart;
+  }
+  
+  /**
+   * Save the document in "sm2", "sm3" or "sm4" format.
+   * 
+   * This writes all values through a single MessagePacker which is only
+   * flushed once at the end. The bytes written are exactly the same as if 
+   * each value had been written separately with Jackson.
+   * 
+   * @param bdoc document to save
+   * @param os stream to write to, this stream is not closed
+   */
   @Override
   public void save(BdocDocument bdoc, OutputStream os) {
     try {
-      omDump.writeValue(os, VERSION); 
-      
-      omDump.writeValue(os, bdoc.offset_type);
-      omDump.writeValue(os, bdoc.text);
-      omDump.writeValue(os, bdoc.name);
-      omDump.writeValue(os, bdoc.features);
-      omDump.writeValue(os, bdoc.annotation_sets.size());
+      MessagePacker packer = MessagePack.newDefaultPacker(os);
+      packer.packString(version);
+      StringTableWriter table = VERSION.equals(version) ? null : new StringTableWriter();
+      boolean delta = VERSION4.equals(version);
+      packStringOrNil(packer, bdoc.offset_type);
+      packStringOrNil(packer, bdoc.text);
+      packStringOrNil(packer, bdoc.name);
+      packValue(packer, bdoc.features);
+      packer.packInt(bdoc.annotation_sets.size());
       for(Map.Entry<String,BdocAnnotationSet> e : bdoc.annotation_sets.entrySet()) {
-        omDump.writeValue(os, e.getKey());
+        packStringOrNil(packer, e.getKey());
         BdocAnnotationSet as = e.getValue();
-        omDump.writeValue(os, as.next_annid);
-        omDump.writeValue(os, as.annotations.size());
-        for(BdocAnnotation ann : as.annotations) {
-          omDump.writeValue(os, ann.type);
-          omDump.writeValue(os, ann.start);
-          omDump.writeValue(os, ann.end);
-          omDump.writeValue(os, ann.id);
-          omDump.writeValue(os, ann.features);
+        packValue(packer, as.next_annid);
+        BdocAnnotationColumns columns = as.columns();
+        if(columns != null) {
+          int n = columns.size();
+          int[] order = delta ? orderByStart(n, columns::getStart) : null;
+          int lastStart = 0;
+          packer.packInt(n);
+          for(int k = 0; k < n; k++) {
+            int i = (order == null) ? k : order[k];
+            packName(packer, table, columns.getType(i));
+            lastStart = packOffsets(packer, delta, lastStart, 
+                    columns.getStart(i), columns.getEnd(i));
+            packValue(packer, columns.getId(i));
+            packFeatures(packer, table, columns.getFeatures(i));
+          }
+          continue;
         }
+        List<BdocAnnotation> anns = as.annotations;
+        int n = anns.size();
+        int[] order = delta ? orderByStart(n, i -> anns.get(i).start) : null;
+        int lastStart = 0;
+        packer.packInt(n);
+        for(int k = 0; k < n; k++) {
+          BdocAnnotation ann = anns.get((order == null) ? k : order[k]);
+          packName(packer, table, ann.type);
+          lastStart = packOffsets(packer, delta, lastStart, ann.start, ann.end);
+          packValue(packer, ann.id);
+          packFeatures(packer, table, ann.features);
+        }
+      }
+      packer.flush();
+    } catch (IOException ex) {
+      throw new RuntimeException("Could not build and save to output stream", ex);
+    }    
+  }
+  
+  /**
+   * Save the document described by the builder in "sm2", "sm3" or "sm4" 
+   * format.
+   * 
+   * This packs the GATE annotations and features directly, without 
+   * creating BdocAnnotation instances or copying feature maps first.
+   * Since the next annotation id is stored before the annotations of a 
+   * set, the ids of each set are scanned once before packing it. 
+   * The result is the same as saving the document returned by 
+   * builder.buildBdoc().
+   * 
+   * @param builder the builder
+   * @param os stream to write to, this stream is not closed
+   */
+  @Override
+  public void save(BdocDocumentBuilder builder, OutputStream os) {
+    try {
+      MessagePacker packer = MessagePack.newDefaultPacker(os);
+      packer.packString(version);
+      StringTableWriter table = VERSION.equals(version) ? null : new StringTableWriter();
+      boolean delta = VERSION4.equals(version);
+      packStringOrNil(packer, builder.getOffsetType());
+      packStringOrNil(packer, builder.getText());
+      packStringOrNil(packer, builder.getName());
+      packValue(packer, builder.getFeatures());
+      List<String> setnames = builder.getAnnotationSetNames();
+      if(setnames == null) {
+        setnames = Collections.emptyList();
       }
+      OffsetMapper mapper = builder.getOffsetMapper();
+      packer.packInt(setnames.size());
+      for(String setname : setnames) {
+        packer.packString(setname);
+        Collection<Annotation> anns = builder.getAnnotations(setname);
+        int next_annid = 0;
+        for(Annotation ann : anns) {
+          if(ann.getId() >= next_annid) {
+            next_annid = ann.getId() + 1;
+          }
+        }
+        packer.packInt(builder.getNextAnnotationId(setname, next_annid));
+        Annotation[] annarr = anns.toArray(new Annotation[anns.size()]);
+        // the order by Java offsets is the same as the order by Python offsets
+        int[] order = delta ? orderByStart(annarr.length, 
+                i -> annarr[i].getStartNode().getOffset().intValue()) : null;
+        int lastStart = 0;
+        packer.packInt(annarr.length);
+        for(int k = 0; k < annarr.length; k++) {
+          Annotation ann = annarr[(order == null) ? k : order[k]];
+          int start = ann.getStartNode().getOffset().intValue();
+          int end = ann.getEndNode().getOffset().intValue();
+          if(mapper != null) {
+            start = mapper.convertToPython(start);
+            end = mapper.convertToPython(end);
+          }
+          packName(packer, table, ann.getType());
+          lastStart = packOffsets(packer, delta, lastStart, start, end);
+          packValue(packer, ann.getId());
+          packFeatureMap(packer, table, ann.getFeatures());
+        }
+      }
+      packer.flush();
     } catch (IOException ex) {
       throw new RuntimeException("Could not build and save to output stream", ex);
     }    
   }
+  
+  /**
+   * Pack a GATE feature map, ignoring null keys.
+   * 
+   * @param packer the packer to use
+   * @param fm the feature map
+   * @throws IOException if an error occurs
+   */
+  private void packFeatureMap(MessagePacker packer, StringTableWriter table, 
+          Map<Object, Object> fm) throws IOException {
+    int size = 0;
+    for(Object key : fm.keySet()) {
+      if(key != null) {
+        size++;
+      }
+    }
+    packer.packMapHeader(size);
+    for(Map.Entry<Object, Object> e : fm.entrySet()) {
+      Object key = e.getKey();
+      if(key == null) {
+        continue;
+      }
+      packName(packer, table, (key instanceof String) ? (String)key : key.toString());
+      packValue(packer, e.getValue());
+    }
+  }
+  
+  /**
+   * Return the indices of the annotations sorted by start offset.
+   * 
+   * Annotations with the same start offset keep their original order.
+   */
+  private static int[] orderByStart(int n, IntUnaryOperator startOf) {
+    long[] keys = new long[n];
+    for(int i = 0; i < n; i++) {
+      keys[i] = ((long)startOf.applyAsInt(i) << 32) | i;
+    }
+    Arrays.sort(keys);
+    int[] order = new int[n];
+    for(int i = 0; i < n; i++) {
+      order[i] = (int)keys[i];
+    }
+    return order;
+  }
+  
+  /**
+   * Pack the offsets of an annotation, for "sm4" as the difference to the 
+   * previous start offset and the length.
+   * 
+   * @return the start offset, which is the previous start offset for the
+   * next annotation
+   */
+  private int packOffsets(MessagePacker packer, boolean delta, int lastStart, 
+          int start, int end) throws IOException {
+    if(delta) {
+      packer.packInt(start - lastStart);
+      packer.packInt(end - start);
+    } else {
+      packer.packInt(start);
+      packer.packInt(end);
+    }
+    return start;
+  }
+  
+  /**
+   * Pack an annotation type or feature name, using the string table if 
+   * there is one.
+   */
+  private void packName(MessagePacker packer, StringTableWriter table, String name) 
+          throws IOException {
+    if(table == null) {
+      packStringOrNil(packer, name);
+    } else {
+      table.pack(packer, name);
+    }
+  }
+  
+  /**
+   * Pack annotation features, using the string table for the feature names
+   * if there is one.
+   */
+  private void packFeatures(MessagePacker packer, StringTableWriter table, 
+          Map<String, Object> fm) throws IOException {
+    if(table == null || fm == null) {
+      packValue(packer, fm);
+      return;
+    }
+    packer.packMapHeader(fm.size());
+    for(Map.Entry<String, Object> e : fm.entrySet()) {
+      table.pack(packer, e.getKey());
+      packValue(packer, e.getValue());
+    }
+  }
+  
+  private void packStringOrNil(MessagePacker packer, String str) throws IOException {
+    if(str == null) {
+      packer.packNil();
+    } else {
+      packer.packString(str);
+    }
+  }
+  
+  /**
+   * Pack an arbitrary value the same way the Jackson MessagePack generator
+   * would do it. 
+   * 
+   * The types which normally occur as feature values are packed directly, 
+   * anything else is serialized with Jackson and the resulting bytes get 
+   * added to the packer.
+   * 
+   * @param packer the packer to use
+   * @param value the value to pack
+   * @throws IOException if an error occurs
+   */
+  private void packValue(MessagePacker packer, Object value) throws IOException {
+    if(value == null) {
+      packer.packNil();
+    } else if(value instanceof String) {
+      packer.packString((String)value);
+    } else if(value instanceof Integer || value instanceof Short || value instanceof Byte) {
+      packer.packInt(((Number)value).intValue());
+    } else if(value instanceof Long) {
+      packer.packLong((Long)value);
+    } else if(value instanceof Double) {
+      packer.packDouble((Double)value);
+    } else if(value instanceof Float) {
+      packer.packFloat((Float)value);
+    } else if(value instanceof Boolean) {
+      packer.packBoolean((Boolean)value);
+    } else if(value instanceof BigInteger) {
+      packer.packBigInteger((BigInteger)value);
+    } else if(value instanceof Map) {
+      // null keys are ignored, as for feature maps
+      Map<?,?> map = (Map<?,?>)value;
+      int size = 0;
+      for(Object key : map.keySet()) {
+        if(key != null) {
+          size++;
+        }
+      }
+      packer.packMapHeader(size);
+      for(Map.Entry<?,?> e : map.entrySet()) {
+        Object key = e.getKey();
+        if(key == null) {
+          continue;
+        }
+        packer.packString((key instanceof String) ? (String)key : key.toString());
+        packValue(packer, e.getValue());
+      }
+    } else if(value instanceof Collection) {
+      Collection<?> coll = (Collection<?>)value;
+      packer.packArrayHeader(coll.size());
+      for(Object el : coll) {
+        packValue(packer, el);
+      }
+    } else {
+      packer.writePayload(omDump.writeValueAsBytes(value));
+    }
+  }
 
+  /**
+   * Load a document in "sm2", "sm3" or "sm4" format.
+   * 
+   * This reads the whole stream through a single MessageUnpacker. Offsets
+   * and lengths are decoded as primitive ints, feature maps are decoded 
+   * into the same Java types Jackson would create for them.
+   * 
+   * @param is stream to read from, this stream is not closed
+   * @return the document
+   */
   @Override
-  @SuppressWarnings("unchecked")
   public BdocDocument load_bdoc(InputStream is) {
+    return load_bdoc(is, false);
+  }
+  
+  /**
+   * Load a document in any of the MsgPack formats with columnar annotation 
+   * sets.
+   * 
+   * @param is stream to read from, this stream is not closed
+   * @return the document
+   */
+  @Override
+  public BdocDocument load_bdoc_columns(InputStream is) {
+    return load_bdoc(is, true);
+  }
+  
+  private BdocDocument load_bdoc(InputStream is, boolean columnar) {
     try {
-      String version = omLoad.readValue(is, String.class);
-      if (!version.equals(VERSION)) { // check if we got our own format
-        throw new GateRuntimeException("Not the expected MsgPack format sm2 but "+version);
-      }
+      MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(is);
+      Decoder decoder = unpackVersion(unpacker);
       BdocDocument bdoc = new BdocDocument();
       // we expect to be ready at this point to read everything after the version string
-      bdoc.offset_type = omLoad.readValue(is, String.class);
-      bdoc.text = omLoad.readValue(is, String.class);
-      bdoc.name = omLoad.readValue(is, String.class);
-      bdoc.features = omLoad.readValue(is, Map.class);
-      int nannsets = omLoad.readValue(is, Integer.class);
+      bdoc.offset_type = unpackStringOrNull(unpacker);
+      bdoc.text = unpackStringOrNull(unpacker);
+      bdoc.name = unpackStringOrNull(unpacker);
+      bdoc.features = unpackMap(unpacker);
+      int nannsets = unpacker.unpackInt();
       Map<String, BdocAnnotationSet> annsets = new HashMap<>();
       for(int i = 0; i<nannsets; i++) {
-        String name = omLoad.readValue(is, String.class);
+        String name = unpackStringOrNull(unpacker);
         if(name == null) {
           name = "";
         }
-        BdocAnnotationSet as = new BdocAnnotationSet();
-        as.name = name;
-        as.next_annid = omLoad.readValue(is, Integer.class);
-        int nanns = omLoad.readValue(is, Integer.class);
-        List<BdocAnnotation> anns = new ArrayList<>(nanns);
-        for(int j=0; j<nanns; j++) {
-          BdocAnnotation ann = new BdocAnnotation();
-          ann.type = omLoad.readValue(is, String.class);
-          ann.start = omLoad.readValue(is, Integer.class);
-          ann.end = omLoad.readValue(is, Integer.class);
-          ann.id = omLoad.readValue(is, Integer.class);
-          ann.features = omLoad.readValue(is, Map.class);
-          anns.add(ann);
-        }
-        as.annotations = anns;   
+        Integer next_annid = unpackIntegerOrNull(unpacker);
+        int nanns = unpacker.unpackInt();
+        decoder.lastStart = 0;
+        BdocAnnotationSet as;
+        if(columnar) {
+          BdocAnnotationColumns columns = new BdocAnnotationColumns(nanns);
+          for(int j=0; j<nanns; j++) {
+            columns.add(unpackAnnotation(unpacker, decoder));
+          }
+          as = BdocAnnotationSet.fromColumns(name, columns, next_annid);
+        } else {
+          as = new BdocAnnotationSet();
+          as.name = name;
+          as.next_annid = next_annid;
+          List<BdocAnnotation> anns = new ArrayList<>(nanns);
+          for(int j=0; j<nanns; j++) {
+            anns.add(unpackAnnotation(unpacker, decoder));
+          }
+          as.annotations = anns;   
+        }
         annsets.put(name, as);
       }
       bdoc.annotation_sets = annsets;
       
       return bdoc;
-    } catch (IOException ex) {
+    } catch (IOException | MessagePackException ex) {
       throw new GateRuntimeException("Error parsing MsgPack data", ex);
     }
-        
-    
+  }
+  
+  /**
+   * Load a document in any of the MsgPack formats and directly update the 
+   * GATE document.
+   * 
+   * Since the format stores the offset type and text before the annotations, 
+   * each annotation is added to the GATE document as soon as it has been
+   * read.
+   * 
+   * @param is stream to read from, this stream is not closed
+   * @param gdu the updater
+   * @return the updated GATE document
+   */
+  @Override
+  public Document load_bdoc(InputStream is, GateDocumentUpdater gdu) {
+    try {
+      MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(is);
+      Decoder decoder = unpackVersion(unpacker);
+      gdu.setOffsetType(unpackStringOrNull(unpacker));
+      gdu.setText(unpackStringOrNull(unpacker));
+      gdu.setName(unpackStringOrNull(unpacker));
+      gdu.setFeatures(unpackMap(unpacker));
+      int nannsets = unpacker.unpackInt();
+      for(int i = 0; i<nannsets; i++) {
+        String name = unpackStringOrNull(unpacker);
+        unpackIntegerOrNull(unpacker);  // next_annid is not needed
+        int nanns = unpacker.unpackInt();
+        decoder.lastStart = 0;
+        for(int j=0; j<nanns; j++) {
+          gdu.addAnnotation(name, unpackAnnotation(unpacker, decoder));
+        }
+      }
+    } catch (IOException | MessagePackException ex) {
+      throw new GateRuntimeException("Error parsing MsgPack data", ex);
+    }
+    return gdu.finish();
+  }
+  
+  /**
+   * Unpack the version string.
+   * 
+   * @return the decoder for that version
+   */
+  private Decoder unpackVersion(MessageUnpacker unpacker) throws IOException {
+    String version = unpackStringOrNull(unpacker);
+    Decoder decoder = new Decoder();
+    if(VERSION3.equals(version)) {
+      decoder.strings = new StringTableReader();
+    } else if(VERSION4.equals(version)) {
+      decoder.strings = new StringTableReader();
+      decoder.delta = true;
+    } else if(!VERSION.equals(version)) { // check if we got our own format
+      throw new GateRuntimeException("Not the expected MsgPack format sm2, sm3 or sm4 but "+version);
+    }
+    return decoder;
+  }
+  
+  private BdocAnnotation unpackAnnotation(MessageUnpacker unpacker, 
+          Decoder decoder) throws IOException {
+    StringTableReader table = decoder.strings;
+    BdocAnnotation ann = new BdocAnnotation();
+    if(table == null) {
+      ann.type = StringCanonicalizer.canonicalize(unpackStringOrNull(unpacker));
+    } else {
+      ann.type = table.unpack(unpacker);
+    }
+    if(decoder.delta) {
+      ann.start = decoder.lastStart + unpacker.unpackInt();
+      ann.end = ann.start + unpacker.unpackInt();
+      decoder.lastStart = ann.start;
+    } else {
+      ann.start = unpacker.unpackInt();
+      ann.end = unpacker.unpackInt();
+    }
+    ann.id = unpackIntegerOrNull(unpacker);
+    if(table == null) {
+      ann.features = unpackFeatureMap(unpacker);
+    } else if(!unpacker.tryUnpackNil()) {
+      int nentries = unpacker.unpackMapHeader();
+      ann.features = new LinkedHashMap<>();
+      for(int i=0; i<nentries; i++) {
+        String key = table.unpack(unpacker);
+        ann.features.put(key, unpackValue(unpacker));
+      }
+    }
+    return ann;
+  }
+  
+  private String unpackStringOrNull(MessageUnpacker unpacker) throws IOException {
+    if(unpacker.tryUnpackNil()) {
+      return null;
+    }
+    return unpacker.unpackString();
   }
 
+  private Integer unpackIntegerOrNull(MessageUnpacker unpacker) throws IOException {
+    if(unpacker.tryUnpackNil()) {
+      return null;
+    }
+    return unpacker.unpackInt();
+  }
+  
+  @SuppressWarnings("unchecked")
+  private Map<String, Object> unpackMap(MessageUnpacker unpacker) throws IOException {
+    return (Map<String, Object>)unpackValue(unpacker);
+  }
+  
+  /**
+   * Unpack the features of an annotation or annotation:add change.
+   * 
+   * Only the feature names are canonicalized, keys of nested maps are not,
+   * so that arbitrary data in feature values does not fill the global 
+   * StringCanonicalizer table.
+   * 
+   * @param unpacker the unpacker to use
+   * @return the feature map or null
+   * @throws IOException  if an error occurs
+   */
+  private Map<String, Object> unpackFeatureMap(MessageUnpacker unpacker) throws IOException {
+    if(unpacker.tryUnpackNil()) {
+      return null;
+    }
+    int nentries = unpacker.unpackMapHeader();
+    Map<String, Object> map = new LinkedHashMap<>();
+    for(int i=0; i<nentries; i++) {
+      Object key = unpackValue(unpacker);
+      map.put(StringCanonicalizer.canonicalize(
+              (key instanceof String) ? (String)key : String.valueOf(key)), 
+              unpackValue(unpacker));
+    }
+    return map;
+  }
+  
+  /**
+   * Unpack an arbitrary value.
+   * 
+   * This creates the same types as Jackson would when reading into an 
+   * Object: LinkedHashMap for maps, ArrayList for arrays, the smallest of 
+   * Integer, Long, BigInteger for integers and Double for floats.
+   * 
+   * @param unpacker the unpacker to use
+   * @return the value
+   * @throws IOException  if an error occurs
+   */
+  private Object unpackValue(MessageUnpacker unpacker) throws IOException {
+    MessageFormat mf = unpacker.getNextFormat();
+    switch (mf.getValueType()) {
+      case NIL:
+        unpacker.unpackNil();
+        return null;
+      case BOOLEAN:
+        return unpacker.unpackBoolean();
+      case INTEGER:
+        if(mf == MessageFormat.UINT64) {
+          BigInteger bival = unpacker.unpackBigInteger();
+          if(bival.bitLength() < 32) {
+            return bival.intValue();
+          } else if(bival.bitLength() < 64) {
+            return bival.longValue();
+          } else {
+            return bival;
+          }
+        }
+        long lval = unpacker.unpackLong();
+        if(lval >= Integer.MIN_VALUE && lval <= Integer.MAX_VALUE) {
+          return (int)lval;
+        } else {
+          return lval;
+        }
+      case FLOAT:
+        return unpacker.unpackDouble();
+      case STRING:
+        return unpacker.unpackString();
+      case BINARY:
+        return unpacker.readPayload(unpacker.unpackBinaryHeader());
+      case ARRAY:
+        int nels = unpacker.unpackArrayHeader();
+        List<Object> list = new ArrayList<>(nels);
+        for(int i=0; i<nels; i++) {
+          list.add(unpackValue(unpacker));
+        }
+        return list;
+      case MAP:
+        int nentries = unpacker.unpackMapHeader();
+        Map<String, Object> map = new LinkedHashMap<>();
+        for(int i=0; i<nentries; i++) {
+          Object key = unpackValue(unpacker);
+          map.put((key instanceof String) ? (String)key : String.valueOf(key), 
+                  unpackValue(unpacker));
+        }
+        return map;
+      case EXTENSION:
+        ExtensionTypeHeader header = unpacker.unpackExtensionTypeHeader();
+        return new MessagePackExtensionType(header.getType(), 
+                unpacker.readPayload(header.getLength()));
+      default:
+        throw new GateRuntimeException("Unexpected MsgPack value type "+mf.getValueType());
+    }
+  }
+
+  /**
+   * Save the ChangeLog as a MsgPack map.
+   * 
+   * This is the same map as for the JSON format, with keys "offset_type" 
+   * and "changes", so it can be created and read by any MsgPack library.
+   * The offset type comes first so that the changes can be applied while 
+   * they are read.
+   * Typed changes are packed directly from the Change instances. 
+   * This is the same for all format versions.
+   * 
+   * @param log the ChangeLog
+   * @param os stream to write to, this stream is not closed
+   */
+  @Override
+  public void save_log(ChangeLog log, OutputStream os) {
+    try {
+      MessagePacker packer = MessagePack.newDefaultPacker(os);
+      packer.packMapHeader(2);
+      packer.packString("offset_type");
+      packStringOrNil(packer, log.offset_type);
+      packer.packString("changes");
+      if(!log.usesEntries()) {
+        packValue(packer, log.changeMaps());
+      } else {
+        List<Change> entries = log.entries();
+        packer.packArrayHeader(entries.size());
+        for(Change chg : entries) {
+          packChange(packer, chg);
+        }
+      }
+      packer.flush();
+    } catch (IOException ex) {
+      throw new RuntimeException("Could not save ChangeLog to output stream", ex);
+    }
+  }
+  
+  /**
+   * Pack a change as a map with the same entries as Change.toMap().
+   */
+  private void packChange(MessagePacker packer, Change chg) throws IOException {
+    switch(chg.command) {
+      case DOC_FEATURES_CLEAR:
+        packer.packMapHeader(1);
+        packCommand(packer, chg);
+        break;
+      case DOC_FEATURE_SET:
+        packer.packMapHeader(3);
+        packCommand(packer, chg);
+        packer.packString("feature");
+        packStringOrNil(packer, chg.feature);
+        packer.packString("value");
+        packValue(packer, chg.value);
+        break;
+      case DOC_FEATURE_REMOVE:
+        packer.packMapHeader(2);
+        packCommand(packer, chg);
+        packer.packString("feature");
+        packStringOrNil(packer, chg.feature);
+        break;
+      case NAME_SET:
+        packer.packMapHeader(2);
+        packCommand(packer, chg);
+        packer.packString("name");
+        packStringOrNil(packer, chg.name);
+        break;
+      case ANN_FEATURES_CLEAR:
+      case ANNOTATION_REMOVE:
+        packer.packMapHeader(3);
+        packCommand(packer, chg);
+        packSetAndId(packer, chg);
+        break;
+      case ANN_FEATURE_SET:
+        packer.packMapHeader(5);
+        packCommand(packer, chg);
+        packSetAndId(packer, chg);
+        packer.packString("feature");
+        packStringOrNil(packer, chg.feature);
+        packer.packString("value");
+        packValue(packer, chg.value);
+        break;
+      case ANN_FEATURE_REMOVE:
+        packer.packMapHeader(4);
+        packCommand(packer, chg);
+        packSetAndId(packer, chg);
+        packer.packString("feature");
+        packStringOrNil(packer, chg.feature);
+        break;
+      case ANNOTATION_ADD:
+        packer.packMapHeader(7);
+        packCommand(packer, chg);
+        packSetAndId(packer, chg);
+        packer.packString("start");
+        packer.packInt(chg.start);
+        packer.packString("end");
+        packer.packInt(chg.end);
+        packer.packString("type");
+        packStringOrNil(packer, chg.type);
+        packer.packString("features");
+        packValue(packer, chg.features);
+        break;
+      case ANNOTATIONS_CLEAR:
+      case ANNOTATIONS_REMOVE:
+        packer.packMapHeader(2);
+        packCommand(packer, chg);
+        packer.packString("set");
+        packStringOrNil(packer, chg.set);
+        break;
+      default:
+        throw new GateRuntimeException("Unknown change command "+chg.command);
+    }
+  }
+  
+  private void packCommand(MessagePacker packer, Change chg) throws IOException {
+    packer.packString("command");
+    packer.packString(chg.command.getName());
+  }
+  
+  private void packSetAndId(MessagePacker packer, Change chg) throws IOException {
+    packer.packString("set");
+    packStringOrNil(packer, chg.set);
+    packer.packString("id");
+    if(chg.id == Change.NO_ID) {
+      packer.packNil();
+    } else {
+      packer.packInt(chg.id);
+    }
+  }
+
+  /**
+   * Load a ChangeLog saved as a MsgPack map.
+   * 
+   * Each change is read directly into a typed Change instance, changes 
+   * with an unknown command are skipped.
+   * 
+   * @param is stream to read from, this stream is not closed
+   * @return the ChangeLog
+   */
   @Override
   public ChangeLog load_log(InputStream is) {
-    throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+    try {
+      MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(is);
+      List<Change> entries = new ArrayList<>();
+      String offset_type = "j";
+      int nentries = unpacker.unpackMapHeader();
+      for(int i = 0; i < nentries; i++) {
+        String key = unpacker.unpackString();
+        switch(key) {
+          case "offset_type":
+            offset_type = unpackStringOrNull(unpacker);
+            break;
+          case "changes":
+            if(unpacker.tryUnpackNil()) {
+              break;
+            }
+            int nchanges = unpacker.unpackArrayHeader();
+            entries = new ArrayList<>(nchanges);
+            for(int j = 0; j < nchanges; j++) {
+              Change chg = unpackChange(unpacker);
+              if(chg != null) {
+                entries.add(chg);
+              }
+            }
+            break;
+          default:
+            unpacker.skipValue();
+        }
+      }
+      return ChangeLog.fromEntries(entries, offset_type);
+    } catch (IOException | MessagePackException ex) {
+      throw new GateRuntimeException("Error parsing MsgPack data", ex);
+    }
+  }
+  
+  /**
+   * Load a ChangeLog saved as a MsgPack map and directly apply it to the 
+   * GATE document.
+   * 
+   * Each change is applied as soon as it has been read. If the offset type
+   * only comes after the changes and the document text contains surrogate
+   * pairs, the changes get buffered until the offset type is known.
+   * 
+   * @param is stream to read from, this stream is not closed
+   * @param gdu the updater
+   * @return the updated GATE document
+   */
+  @Override
+  public Document load_log(InputStream is, GateDocumentUpdater gdu) {
+    try {
+      MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(is);
+      int nentries = unpacker.unpackMapHeader();
+      for(int i = 0; i < nentries; i++) {
+        String key = unpacker.unpackString();
+        switch(key) {
+          case "offset_type":
+            gdu.setOffsetType(unpackStringOrNull(unpacker));
+            break;
+          case "changes":
+            if(unpacker.tryUnpackNil()) {
+              break;
+            }
+            int nchanges = unpacker.unpackArrayHeader();
+            for(int j = 0; j < nchanges; j++) {
+              Change chg = unpackChange(unpacker);
+              if(chg != null) {
+                gdu.addChange(chg);
+              }
+            }
+            break;
+          default:
+            unpacker.skipValue();
+        }
+      }
+    } catch (IOException | MessagePackException ex) {
+      throw new GateRuntimeException("Error parsing MsgPack data", ex);
+    }
+    return gdu.finish();
+  }
+  
+  /**
+   * Unpack a change, returns null for a change with an unknown command.
+   */
+  private Change unpackChange(MessageUnpacker unpacker) throws IOException {
+    Change chg = new Change();
+    String command = null;
+    int nentries = unpacker.unpackMapHeader();
+    for(int i = 0; i < nentries; i++) {
+      String key = unpacker.unpackString();
+      switch(key) {
+        case "command":
+          command = unpackStringOrNull(unpacker);
+          break;
+        case "set":
+          chg.set = StringCanonicalizer.canonicalize(unpackStringOrNull(unpacker));
+          break;
+        case "id":
+          if(!unpacker.tryUnpackNil()) {
+            chg.id = unpacker.unpackInt();
+          }
+          break;
+        case "start":
+          chg.start = unpacker.unpackInt();
+          break;
+        case "end":
+          chg.end = unpacker.unpackInt();
+          break;
+        case "type":
+          chg.type = StringCanonicalizer.canonicalize(unpackStringOrNull(unpacker));
+          break;
+        case "features":
+          chg.features = unpackFeatureMap(unpacker);
+          break;
+        case "feature":
+          chg.feature = StringCanonicalizer.canonicalize(unpackStringOrNull(unpacker));
+          break;
+        case "value":
+          chg.value = unpackValue(unpacker);
+          break;
+        case "name":
+          chg.name = unpackStringOrNull(unpacker);
+          break;
+        default:
+          unpacker.skipValue();
+      }
+    }
+    chg.command = Change.Command.fromName(command);
+    return (chg.command == null) ? null : chg;
   }
 
 }
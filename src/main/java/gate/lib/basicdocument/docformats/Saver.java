@@ -20,6 +20,8 @@
 package gate.lib.basicdocument.docformats;
 
 import gate.lib.basicdocument.BdocDocument;
+import gate.lib.basicdocument.BdocDocumentBuilder;
+import gate.lib.basicdocument.ChangeLog;
 import gate.util.GateRuntimeException;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
@@ -94,11 +96,36 @@ public class Saver {
     return this;
   }
   public String save(BdocDocument bdoc) {
+    return save(bdoc, null, null);
+  }
+  /**
+   * Save the document described by the builder.
+   * 
+   * For JSON and MsgPack this writes the GATE annotations directly and 
+   * avoids creating a copy of all annotations as a BdocDocument.
+   * 
+   * @param builder the configured builder
+   * @return the String representation if asString() was used, otherwise null
+   */
+  public String save(BdocDocumentBuilder builder) {
+    return save(null, builder, null);
+  }
+  /**
+   * Save the ChangeLog.
+   * 
+   * @param log the ChangeLog
+   * @return the String representation if asString() was used, otherwise null
+   */
+  public String save(ChangeLog log) {
+    return save(null, null, log);
+  }
+  private String save(BdocDocument bdoc, BdocDocumentBuilder builder, ChangeLog log) {
     checkHaveNeeded();
     try {
       String ret = null;
       if(toString) {
-        if(format == Format.MSGPACK) {
+        if(format == Format.MSGPACK || format == Format.MSGPACK_SM3 ||
+           format == Format.MSGPACK_SM4) {
           throw new GateRuntimeException("Format MsgPack cannot be converted to String");
         }
         os = new ByteArrayOutputStream();
@@ -108,16 +135,12 @@ public class Saver {
       if(gzipped) {
         os = new GZIPOutputStream(os);
       }
-      switch (format) {
-        case JSON_MAP:
-          new JsonFormatSupportMap().save(bdoc, os);
-          break;
-        case YAML_MAP:
-          new YamlFormatSupportMap().save(bdoc, os);
-          break;
-        default:
-          new MsgPackFormatSupport().save(bdoc, os);
-          break;
+      if(log != null) {
+        FormatSupportRegistry.get(format).save_log(log, os);
+      } else if(builder != null) {
+        FormatSupportRegistry.get(format).save(builder, os);
+      } else {
+        FormatSupportRegistry.get(format).save(bdoc, os);
       }
       if(toString) {
         ret = ((ByteArrayOutputStream)os).toString("utf-8");
@@ -22,30 +22,55 @@
 package gate.lib.basicdocument.docformats;
 
 import org.yaml.snakeyaml.Yaml;
+import gate.lib.basicdocument.BdocAnnotationSet;
 import gate.lib.basicdocument.BdocDocument;
 import gate.lib.basicdocument.ChangeLog;
 import gate.util.GateRuntimeException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * How to serialize/deserialize JSON Map format.
  * 
  * @author Johann Petrak
  * 
- * Since each Yaml instance should be restricted to a thread, instances
- * of this class should not get shared between threads!
+ * Since each Yaml instance should be restricted to a thread, each call
+ * borrows a Yaml instance from a small pool owned by this instance and 
+ * returns it afterwards, so instances of this class can be shared between
+ * threads. Unlike a ThreadLocal, the pool does not keep instances of the 
+ * plugin classes reachable from pooled threads.
  * 
  */
 public class YamlFormatSupportMap implements FormatSupport {
 
+  /**
+   * Maximum number of idle Yaml instances kept.
+   */
+  private static final int MAX_POOLED = 8;
   
-  private final Yaml yml;
+  private final Queue<Yaml> yamls = new ConcurrentLinkedQueue<>();
   
   public YamlFormatSupportMap() {
-    yml = new Yaml();
+  }
+  
+  private Yaml borrowYaml() {
+    Yaml yaml = yamls.poll();
+    return (yaml == null) ? new Yaml() : yaml;
+  }
+  
+  /**
+   * Return a Yaml instance to the pool, only called if it was used without
+   * an error.
+   */
+  private void returnYaml(Yaml yaml) {
+    if(yamls.size() < MAX_POOLED) {
+      yamls.offer(yaml);
+    }
   }
   
   
@@ -53,7 +78,9 @@ public class YamlFormatSupportMap implements FormatSupport {
   public void save(BdocDocument bdoc, OutputStream os) {
     try {
       // Save without the class tag, so it looks like a map
-      String rep = yml.dumpAsMap(bdoc);
+      Yaml yaml = borrowYaml();
+      String rep = yaml.dumpAsMap(withAnnotationLists(bdoc));
+      returnYaml(yaml);
       os.write(rep.getBytes("UTF-8"));
     } catch (IOException ex) {
       ex.printStackTrace(System.err);
@@ -61,20 +88,65 @@ public class YamlFormatSupportMap implements FormatSupport {
     }
   }
 
+  /**
+   * SnakeYAML only sees the annotations field of an annotation set, so 
+   * for columnar sets, a shallow copy with the list representation is used.
+   */
+  private BdocDocument withAnnotationLists(BdocDocument bdoc) {
+    if(bdoc.annotation_sets == null || 
+       bdoc.annotation_sets.values().stream().allMatch(s -> s == null || s.columns() == null)) {
+      return bdoc;
+    }
+    BdocDocument copy = new BdocDocument();
+    copy.features = bdoc.features;
+    copy.text = bdoc.text;
+    copy.name = bdoc.name;
+    copy.offset_type = bdoc.offset_type;
+    copy.annotation_sets = new LinkedHashMap<>();
+    for(Map.Entry<String, BdocAnnotationSet> e : bdoc.annotation_sets.entrySet()) {
+      BdocAnnotationSet annset = e.getValue();
+      if(annset != null && annset.columns() != null) {
+        BdocAnnotationSet listset = new BdocAnnotationSet();
+        listset.name = annset.name;
+        listset.next_annid = annset.next_annid;
+        listset.annotations = annset.annotationList();
+        annset = listset;
+      }
+      copy.annotation_sets.put(e.getKey(), annset);
+    }
+    return copy;
+  }
+
   @Override
   public BdocDocument load_bdoc(InputStream is) {    
     // load as map ... 
-    Map<String,Object> map = yml.load(is);
+    Yaml yaml = borrowYaml();
+    Map<String,Object> map = yaml.load(is);
+    returnYaml(yaml);
     // and create the bdoc from the map
     BdocDocument bdoc = new BdocDocument(map);
     return bdoc;
   }
 
+  @Override
+  public void save_log(ChangeLog log, OutputStream os) {
+    try {
+      Yaml yaml = borrowYaml();
+      String rep = yaml.dumpAsMap(log.toMap());
+      returnYaml(yaml);
+      os.write(rep.getBytes("UTF-8"));
+    } catch (IOException ex) {
+      ex.printStackTrace(System.err);
+      throw new GateRuntimeException("Could not convert ChangeLog to YAML map", ex);
+    }
+  }
+
   @Override
   public ChangeLog load_log(InputStream is) {
-    ChangeLog log;
-    log = yml.load(is);
-    return log;    
+    Yaml yaml = borrowYaml();
+    Map<String,Object> map = yaml.load(is);
+    returnYaml(yaml);
+    return ChangeLog.fromMap(map);
   }
 
 
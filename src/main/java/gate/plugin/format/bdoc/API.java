@@ -39,6 +39,7 @@ import gate.lib.basicdocument.GateDocumentUpdater;
 import gate.lib.basicdocument.docformats.Format;
 import gate.lib.basicdocument.docformats.Loader;
 import gate.util.GateRuntimeException;
+import java.io.ByteArrayInputStream;
 import java.util.*;
 import javax.swing.Action;
 
@@ -66,10 +67,14 @@ public class API extends ResourceHelper {
   }
   
   private Document update_document_from_log(Document gdoc, ChangeLog log) {
+    newLogUpdater(gdoc).fromChangeLog(log);    
+    return gdoc;
+  }
+  
+  private GateDocumentUpdater newLogUpdater(Document gdoc) {
     GateDocumentUpdater gdu = new GateDocumentUpdater(gdoc);
     gdu.handleNewAnnotation(GateDocumentUpdater.HandleNewAnns.ADD_WITH_BDOC_ID);
-    gdu.fromChangeLog(log);    
-    return gdoc;
+    return gdu;
   }
   
   @Override
@@ -80,6 +85,7 @@ public class API extends ResourceHelper {
     Document gdoc;
     ChangeLog log;
     String json;
+    byte[] bytes;
     Map<String, Map<String, Object>> annsetsmap;    
     Map<String,Object> map;
     switch(action) {
@@ -134,6 +140,11 @@ public class API extends ResourceHelper {
         map = (Map<String,Object>)params[0];
         log = ChangeLog.fromMap(map);
         return log;      
+      case "log_from_msgpack":
+        bytes = (byte[])params[0];
+        log = new Loader().format(Format.MSGPACK).
+                from(new ByteArrayInputStream(bytes)).load_log();
+        return log;      
       case "update_document_from_bdoc":        
         gdoc = (Document)resource;
         bdoc = (BdocDocument)params[0];
@@ -155,8 +166,13 @@ public class API extends ResourceHelper {
       case "update_document_from_logjson":        
         gdoc = (Document)resource;
         json = (String)params[0];
-        log = new Loader().format(Format.JSON_MAP).fromString(json).load_log();
-        return update_document_from_log(gdoc, log);
+        return new Loader().format(Format.JSON_MAP).fromString(json).
+                load_log(newLogUpdater(gdoc));
+      case "update_document_from_logmsgpack":        
+        gdoc = (Document)resource;
+        bytes = (byte[])params[0];
+        return new Loader().format(Format.MSGPACK).
+                from(new ByteArrayInputStream(bytes)).load_log(newLogUpdater(gdoc));
       case "bdocannsets_from_docanns":
         // the BDOC Json representation of just the annotation sets 
         // if there is at least one params, assume it is an annotation specification
@@ -30,7 +30,11 @@ import gate.corpora.RepositioningInfo;
 import gate.creole.ResourceInstantiationException;
 import gate.lib.basicdocument.BdocDocument;
 import gate.lib.basicdocument.GateDocumentUpdater;
+import gate.lib.basicdocument.docformats.Format;
 import gate.util.DocumentFormatException;
+import gate.util.GateRuntimeException;
+import java.io.IOException;
+import java.io.InputStream;
 
 /**
  * Base class for Bdoc format classes.
@@ -112,9 +116,87 @@ public abstract class BaseFormatBdoc
     dcmnt.setContent(newContent);
     GateDocumentUpdater gdu = new GateDocumentUpdater(dcmnt);
     gdu.handleNewAnnotation(GateDocumentUpdater.HandleNewAnns.ADD_WITH_BDOC_ID);
+    gdu.bulkLoad(true);
     gdu.fromBdoc(bdoc);
   }
 
+  /**
+   * Create the updater for loading a bdoc representation into the document.
+   * 
+   * The updater is meant to be passed to Loader.load_bdoc(GateDocumentUpdater)
+   * which replaces the document content and adds the annotations while they
+   * are read, without creating a BdocDocument first. 
+   * 
+   * @param dcmnt document to update
+   * @return the updater
+   */
+  public GateDocumentUpdater newDocumentUpdater(Document dcmnt) {
+    GateDocumentUpdater gdu = new GateDocumentUpdater(dcmnt);
+    gdu.handleNewAnnotation(GateDocumentUpdater.HandleNewAnns.ADD_WITH_BDOC_ID);
+    gdu.bulkLoad(true);
+    return gdu;
+  }
+
+  /**
+   * Detect the serialization format from the first bytes of the stream.
+   * 
+   * The stream must support mark/reset and is reset to where it was 
+   * before, so the same stream can then be used for loading. 
+   * JSON is recognized by a "{" after an optional UTF-8 or UTF-16 byte
+   * order mark and optional whitespace, MsgPack by the format version 
+   * string "sm..." it starts with. 
+   * 
+   * @param is the stream, positioned at the start of the bdoc data
+   * @return the detected format
+   * @throws IOException if the stream cannot be read
+   */
+  public static Format sniffFormat(InputStream is) throws IOException {
+    if(!is.markSupported()) {
+      throw new GateRuntimeException("Cannot detect format, stream does not support mark/reset");
+    }
+    byte[] buf = new byte[SNIFF_LENGTH];
+    is.mark(SNIFF_LENGTH);
+    int n = 0;
+    try {
+      int r;
+      while(n < buf.length && (r = is.read(buf, n, buf.length - n)) >= 0) {
+        n += r;
+      }
+    } finally {
+      is.reset();
+    }
+    if(n < 2) {
+      throw new GateRuntimeException("Could not detect bdoc format, not enough data");
+    }
+    // MsgPack: a fixstr of length 3 with the format version, e.g. "sm2"
+    if(n >= 4 && (buf[0] & 0xff) == 0xa3 && buf[1] == 's' && buf[2] == 'm') {
+      return Format.MSGPACK;
+    }
+    // JSON: skip a byte order mark, whitespace, and for UTF-16 the zero bytes
+    int i = 0;
+    int step = 1;
+    if(n >= 3 && (buf[0] & 0xff) == 0xef && (buf[1] & 0xff) == 0xbb && (buf[2] & 0xff) == 0xbf) {
+      i = 3;
+    } else if((buf[0] & 0xff) == 0xfe && (buf[1] & 0xff) == 0xff) {
+      i = 3;  // big endian: the zero byte comes first
+      step = 2;
+    } else if((buf[0] & 0xff) == 0xff && (buf[1] & 0xff) == 0xfe) {
+      i = 2;  // little endian: the zero byte comes second
+      step = 2;
+    }
+    for(; i < n; i += step) {
+      byte b = buf[i];
+      if(b == '{') {
+        return Format.JSON_MAP;
+      } else if(b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+        break;
+      }
+    }
+    throw new GateRuntimeException("Could not detect bdoc format, neither JSON nor MsgPack");
+  }
+  
+  private static final int SNIFF_LENGTH = 64;
+
   /**
    * Method for unpacking with repo info: not supported.
    *
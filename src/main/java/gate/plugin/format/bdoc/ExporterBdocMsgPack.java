@@ -24,7 +24,6 @@ import gate.DocumentExporter;
 import gate.FeatureMap;
 import gate.creole.metadata.AutoInstance;
 import gate.creole.metadata.CreoleResource;
-import gate.lib.basicdocument.BdocDocument;
 import gate.lib.basicdocument.BdocDocumentBuilder;
 import gate.lib.basicdocument.docformats.Format;
 import gate.lib.basicdocument.docformats.Saver;
@@ -65,8 +64,7 @@ public class ExporterBdocMsgPack extends DocumentExporter {
   public void export(Document dcmnt, OutputStream out, FeatureMap fm) throws IOException {
     BdocDocumentBuilder builder = new BdocDocumentBuilder();
     builder.fromGate(dcmnt);
-    BdocDocument bdoc = builder.buildBdoc();
-    new Saver().to(out).format(Format.MSGPACK).save(bdoc);
+    new Saver().to(out).format(Format.MSGPACK).save(builder);
   }
   
   
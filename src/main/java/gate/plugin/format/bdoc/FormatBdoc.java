@@ -22,11 +22,11 @@ package gate.plugin.format.bdoc;
 import gate.Document;
 import gate.creole.metadata.AutoInstance;
 import gate.creole.metadata.CreoleResource;
-import gate.lib.basicdocument.BdocDocument;
 import gate.lib.basicdocument.docformats.Format;
 import gate.lib.basicdocument.docformats.Loader;
 import gate.util.DocumentFormatException;
 import gate.util.GateRuntimeException;
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
@@ -76,35 +76,13 @@ public class FormatBdoc
     if(sourceUrl == null) {
       throw new GateRuntimeException("Source URL is null");
     }
-    Format fmt;
-    try (InputStream is = sourceUrl.openStream()) {
-      byte buf[] = new byte[8];
-      int n = is.read(buf);
-      if(n<2) {
-        throw new GateRuntimeException("Could not read bdoc from URL "+sourceUrl+" not enough data");
-      }
-      // TODO: for now, a very simple heuristic: if it starts with "{" must be
-      // JSON, otherwise msgpack. should maybe check the msgpack bytes 
-      // For JSON should maybe ignore byte order encoding marker 
-      if(buf[0] == 123) { // ascii for "{"
-        fmt = Format.JSON_MAP;
-      // TODO: in case we want to support a serialization format that uses
-      // a json array instead of map
-      //} else if (buf[0] == 91) { // ascii for "["
-      //  fmt = Format.JSON_ARR;
-      } else {
-        fmt = Format.MSGPACK;
-      }
-    } catch (IOException ex) {
-      throw new GateRuntimeException("Could not read MsgPack data from URL "+sourceUrl, ex);
-    }    
-    // open the URL again and call the proper loading function
-    BdocDocument bdoc;
-    try (InputStream is = sourceUrl.openStream()) {
-      bdoc = new Loader().from(is).format(fmt).load_bdoc();
+    // the data is read only once: the first few bytes are used to detect
+    // the format, then the same stream is reset and loaded
+    try (InputStream is = new BufferedInputStream(sourceUrl.openStream())) {
+      Format fmt = sniffFormat(is);
+      new Loader().from(is).format(fmt).load_bdoc(newDocumentUpdater(dcmnt));
     } catch (IOException ex) {
       throw new GateRuntimeException("Could not read Bdoc from URL "+sourceUrl, ex);
     } 
-    updateDocument(dcmnt, bdoc);
   }
 }
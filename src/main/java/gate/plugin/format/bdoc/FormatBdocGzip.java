@@ -23,11 +23,11 @@ package gate.plugin.format.bdoc;
 import gate.Document;
 import gate.creole.metadata.AutoInstance;
 import gate.creole.metadata.CreoleResource;
-import gate.lib.basicdocument.BdocDocument;
 import gate.lib.basicdocument.docformats.Format;
 import gate.lib.basicdocument.docformats.Loader;
 import gate.util.DocumentFormatException;
 import gate.util.GateRuntimeException;
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
@@ -78,35 +78,16 @@ public class FormatBdocGzip
     if(sourceUrl == null) {
       throw new GateRuntimeException("Source URL is null");
     }
-    // figure out which format we really have
-    boolean isJson;
+    // the data is read and decompressed only once: the first few bytes are
+    // used to detect the format, then the same stream is reset and loaded
     try (
             InputStream urlStream = sourceUrl.openStream();
-            GZIPInputStream is = new GZIPInputStream(urlStream);
+            InputStream is = new BufferedInputStream(new GZIPInputStream(urlStream));
         ) {
-      byte buf[] = new byte[8];
-      int n = is.read(buf);
-      if(n<2) {
-        throw new GateRuntimeException("Could not read bdoc from URL "+sourceUrl+" not enough data");
-      }
-      // TODO: for now, a very simple heuristic: if it starts with "{" must be
-      // JSON, otherwise msgpack. should maybe check the msgpack bytes 
-      // For JSON should maybe ignore byte order encoding marker 
-      isJson = (buf[0] == 123);  // 123 is ASCII code of "{"
-    } catch (IOException ex) {
-      throw new GateRuntimeException("Could not read MsgPack data from URL "+sourceUrl, ex);
-    }    
-    // open the URL again and call the proper loading function
-    BdocDocument bdoc;
-    try (InputStream is = sourceUrl.openStream()) {
-      if(isJson) {
-        bdoc = new Loader().from(is).format(Format.JSON_MAP).gzipped(true).load_bdoc();
-      } else {
-        bdoc = new Loader().from(is).format(Format.MSGPACK).gzipped(true).load_bdoc();
-      }
+      Format fmt = sniffFormat(is);
+      new Loader().from(is).format(fmt).load_bdoc(newDocumentUpdater(dcmnt));
     } catch (IOException ex) {
       throw new GateRuntimeException("Could not read Bdoc from URL "+sourceUrl, ex);
     } 
-    updateDocument(dcmnt, bdoc);
   }
 }
@@ -23,7 +23,6 @@ package gate.plugin.format.bdoc;
 import gate.Document;
 import gate.creole.metadata.AutoInstance;
 import gate.creole.metadata.CreoleResource;
-import gate.lib.basicdocument.BdocDocument;
 import gate.lib.basicdocument.docformats.Format;
 import gate.lib.basicdocument.docformats.Loader;
 import gate.util.DocumentFormatException;
@@ -73,13 +72,11 @@ public class FormatBdocYaml
     if(sourceUrl == null) {
       throw new GateRuntimeException("Source URL is null");
     }
-    BdocDocument bdoc;
     try (InputStream is = sourceUrl.openStream()) {
-      bdoc = new Loader().from(is).format(Format.YAML_MAP).load_bdoc();
+      new Loader().from(is).format(Format.YAML_MAP).load_bdoc(newDocumentUpdater(dcmnt));
     } catch (IOException ex) {
       throw new GateRuntimeException("Could not read Bdoc from URL "+sourceUrl, ex);
     } 
-    updateDocument(dcmnt, bdoc);
   }
 
 }
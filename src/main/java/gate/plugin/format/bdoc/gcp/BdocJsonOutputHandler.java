@@ -24,9 +24,9 @@ import gate.Document;
 import gate.cloud.batch.DocumentID;
 import static gate.cloud.io.IOConstants.PARAM_FILE_EXTENSION;
 import gate.cloud.io.file.AbstractFileOutputHandler;
-import gate.lib.basicdocument.BdocDocument;
 import gate.lib.basicdocument.BdocDocumentBuilder;
-import gate.lib.basicdocument.docformats.JsonFormatSupportMap;
+import gate.lib.basicdocument.docformats.Format;
+import gate.lib.basicdocument.docformats.FormatSupportRegistry;
 import gate.util.GateException;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -69,9 +69,8 @@ public class BdocJsonOutputHandler  extends AbstractFileOutputHandler {
   {
     BdocDocumentBuilder builder = new BdocDocumentBuilder();
     builder.fromGate(dcmnt);
-    BdocDocument bdoc = builder.buildBdoc();
     try ( OutputStream os = getFileOutputStream(did);) {
-      new JsonFormatSupportMap().save(bdoc, os);
+      FormatSupportRegistry.get(Format.JSON_MAP).save(builder, os);
     }    
   }
   
@@ -23,9 +23,9 @@ package gate.plugin.format.bdoc.gcp;
 import gate.Document;
 import gate.cloud.batch.DocumentID;
 import gate.cloud.io.file.AbstractFileOutputHandler;
-import gate.lib.basicdocument.BdocDocument;
 import gate.lib.basicdocument.BdocDocumentBuilder;
-import gate.lib.basicdocument.docformats.MsgPackFormatSupport;
+import gate.lib.basicdocument.docformats.Format;
+import gate.lib.basicdocument.docformats.FormatSupportRegistry;
 import gate.util.GateException;
 
 import java.io.IOException;
@@ -72,9 +72,8 @@ public class BdocMsgPackOutputHandler extends AbstractFileOutputHandler {
   {
     BdocDocumentBuilder builder = new BdocDocumentBuilder();
     builder.fromGate(dcmnt);
-    BdocDocument bdoc = builder.buildBdoc();
     try ( OutputStream os = getFileOutputStream(did);) {
-      new MsgPackFormatSupport().save(bdoc, os);
+      FormatSupportRegistry.get(Format.MSGPACK).save(builder, os);
     }    
   }
   
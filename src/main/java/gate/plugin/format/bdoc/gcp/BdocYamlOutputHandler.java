@@ -23,10 +23,9 @@ package gate.plugin.format.bdoc.gcp;
 import gate.Document;
 import gate.cloud.batch.DocumentID;
 import gate.cloud.io.file.AbstractFileOutputHandler;
-import gate.lib.basicdocument.BdocDocument;
 import gate.lib.basicdocument.BdocDocumentBuilder;
-import gate.lib.basicdocument.docformats.JsonFormatSupportMap;
-import gate.lib.basicdocument.docformats.YamlFormatSupportMap;
+import gate.lib.basicdocument.docformats.Format;
+import gate.lib.basicdocument.docformats.FormatSupportRegistry;
 import gate.util.GateException;
 import org.yaml.snakeyaml.Yaml;
 
@@ -75,9 +74,8 @@ public class BdocYamlOutputHandler extends AbstractFileOutputHandler {
   {
     BdocDocumentBuilder builder = new BdocDocumentBuilder();
     builder.fromGate(dcmnt);
-    BdocDocument bdoc = builder.buildBdoc();
     try ( OutputStream os = getFileOutputStream(did);) {
-      new YamlFormatSupportMap().save(bdoc, os);
+      FormatSupportRegistry.get(Format.YAML_MAP).save(builder, os);
     }    
   }
   
@@ -26,18 +26,32 @@ import gate.Factory;
 import gate.Gate;
 import gate.Utils;
 import gate.creole.ResourceInstantiationException;
+import gate.lib.basicdocument.BdocAnnotationColumns;
 import gate.lib.basicdocument.BdocAnnotationSet;
 import gate.lib.basicdocument.BdocAnnotation;
 import gate.lib.basicdocument.BdocDocument;
 import gate.lib.basicdocument.BdocDocumentBuilder;
+import gate.lib.basicdocument.Change;
+import gate.lib.basicdocument.ChangeLog;
+import gate.lib.basicdocument.ChangeLogRecorder;
+import gate.lib.basicdocument.GateDocumentUpdater;
 import gate.lib.basicdocument.OffsetMapper;
+import gate.lib.basicdocument.OffsetMapperCache;
 import gate.lib.basicdocument.docformats.Format;
 import gate.lib.basicdocument.docformats.Loader;
 import gate.lib.basicdocument.docformats.Saver;
 import gate.util.GateException;
+import gate.util.GateRuntimeException;
 import gate.util.InvalidOffsetException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import junit.framework.TestCase;
 import org.junit.Assert;
 import org.junit.Test;
@@ -150,4 +164,583 @@ public class TestBasicDocument1 extends TestCase {
     Assert.assertArrayEquals(p2j_expected, p2j_actual);
   }
   
+  /**
+   * Test offset mapping edge cases.
+   */
+  @Test
+  public void testOffsetMappings2() {
+    // no surrogates: identity
+    OffsetMapper om = new OffsetMapper("abc");
+    Assert.assertTrue(om.isIdentity());
+    Assert.assertEquals(3, om.convertToPython(3));
+    Assert.assertEquals(3, om.convertToJava(3));
+    Assert.assertArrayEquals(new int[]{0,1,2,3}, om.getJava2PythonArray());
+    // empty text
+    om = new OffsetMapper("");
+    Assert.assertEquals(0, om.convertToPython(0));
+    Assert.assertEquals(0, om.convertToJava(0));
+    // text ending in a surrogate pair
+    om = new OffsetMapper("a\uD83D\uDCA9");
+    Assert.assertFalse(om.isIdentity());
+    Assert.assertArrayEquals(new int[]{0,1,1,2}, om.getJava2PythonArray());
+    Assert.assertArrayEquals(new int[]{0,1,3}, om.getPython2JavaArray());
+    // an unpaired surrogate counts as a code point
+    om = new OffsetMapper("\uD83Da\uD83D\uDCA9");
+    Assert.assertArrayEquals(new int[]{0,1,2,2,3}, om.getJava2PythonArray());
+    Assert.assertArrayEquals(new int[]{0,1,2,4}, om.getPython2JavaArray());
+  }
+  
+  /**
+   * Test the sparse offset mapping against the code point methods of String.
+   */
+  @Test
+  public void testOffsetMappingsSparse() {
+    StringBuilder sb = new StringBuilder();
+    for(int i = 0; i < 1000; i++) {
+      sb.append((i % 200 == 7) ? "\uD83D\uDCA9" : "x");
+    }
+    String text = sb.toString();
+    OffsetMapper om = new OffsetMapper(text);
+    Assert.assertTrue(om.isSparse());
+    for(int j = 0; j <= text.length(); j++) {
+      if(j < text.length() && Character.isLowSurrogate(text.charAt(j))) {
+        // inside a pair: same as the start of the pair
+        Assert.assertEquals(om.convertToPython(j-1), om.convertToPython(j));
+      } else {
+        Assert.assertEquals(text.codePointCount(0, j), om.convertToPython(j));
+      }
+    }
+    int plen = text.codePointCount(0, text.length());
+    for(int p = 0; p <= plen; p++) {
+      Assert.assertEquals(text.offsetByCodePoints(0, p), om.convertToJava(p));
+    }
+  }
+  
+  /**
+   * Test that offset mappers get shared per document and text.
+   * @throws ResourceInstantiationException if error
+   */
+  @Test
+  public void testOffsetMapperCache() throws ResourceInstantiationException {
+    Document doc = Factory.newDocument(sampleText2);
+    OffsetMapper om1 = OffsetMapperCache.get(doc);
+    Assert.assertSame(om1, OffsetMapperCache.get(doc));
+    Assert.assertSame(om1, new BdocDocumentBuilder().fromGate(doc).pythonOffsets().getOffsetMapper());
+    doc.setContent(new gate.corpora.DocumentContentImpl("other text"));
+    OffsetMapper om2 = OffsetMapperCache.get(doc);
+    Assert.assertNotSame(om1, om2);
+    Assert.assertTrue(om2.isIdentity());
+    Factory.deleteResource(doc);
+  }
+  
+  /**
+   * Test the bulk offset conversion methods.
+   */
+  @Test
+  public void testOffsetMappingsBulk() {
+    StringBuilder sb = new StringBuilder();
+    for(int i = 0; i < 100000; i++) {
+      sb.append((i % 3 == 0) ? "\uD83D\uDCA9" : "x");
+    }
+    String text = sb.toString();
+    OffsetMapper om = new OffsetMapper(text);
+    int[] offsets = new int[text.length()+1];
+    for(int i = 0; i < offsets.length; i++) {
+      offsets[i] = i;
+    }
+    int[] parallel = offsets.clone();
+    om.convertToPython(offsets);
+    om.convertToPythonParallel(parallel);
+    Assert.assertArrayEquals(om.getJava2PythonArray(), offsets);
+    Assert.assertArrayEquals(offsets, parallel);
+    int[] back = new int[]{0, 1, 5, text.codePointCount(0, text.length())};
+    om.convertToJava(back);
+    Assert.assertArrayEquals(new int[]{0, 2, 7, text.length()}, back);
+    try {
+      om.convertToJava(new int[]{1, -1});
+      Assert.fail("Expected an exception for an offset out of range");
+    } catch(gate.util.GateRuntimeException ex) {
+      // expected
+    }
+  }
+  
+  /**
+   * Test the columnar representation of annotation sets.
+   * @throws ResourceInstantiationException if error
+   * @throws InvalidOffsetException  if error
+   */
+  @Test
+  public void testAnnotationColumns() throws ResourceInstantiationException, InvalidOffsetException {
+    Document doc = Factory.newDocument(sampleText1);
+    AnnotationSet defSet = doc.getAnnotations();
+    defSet.add(0L, 4L, "Token", Utils.featureMap("string", "This"));
+    defSet.add(6L, 8L, "Token", Utils.featureMap());
+    defSet.add(17L, 19L, "Emoji", Utils.featureMap("string", "poo"));
+    doc.getAnnotations("Other").add(20L, 28L, "Token", Utils.featureMap());
+    BdocDocument bdoc = new BdocDocumentBuilder()
+            .fromGate(doc)
+            .buildBdoc();
+    for(Format fmt : new Format[]{Format.JSON_MAP, Format.MSGPACK, Format.YAML_MAP}) {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      new Saver().format(fmt).to(baos).save(bdoc);
+      byte[] saved = baos.toByteArray();
+      BdocDocument bdocl = new Loader().format(fmt).
+              from(new ByteArrayInputStream(saved)).load_bdoc();
+      BdocDocument bdocc = new Loader().format(fmt).columnar(true).
+              from(new ByteArrayInputStream(saved)).load_bdoc();
+      BdocAnnotationSet cset = bdocc.annotation_sets.get("");
+      Assert.assertNull(cset.annotations);
+      BdocAnnotationColumns columns = cset.columns();
+      Assert.assertNotNull(columns);
+      Assert.assertEquals(3, columns.size());
+      Assert.assertEquals(asJson(bdocl), asJson(bdocc));
+      Assert.assertEquals("This", columns.getFeatures(0).get("string"));
+      Assert.assertTrue(columns.getFeatures(1).isEmpty());
+      Assert.assertNotSame(columns.getFeatures(2), columns.getFeatures(2));
+      // saving the columnar document gives the same result 
+      baos = new ByteArrayOutputStream();
+      new Saver().format(fmt).to(baos).save(bdocc);
+      Assert.assertArrayEquals(saved, baos.toByteArray());
+      // converting in both directions keeps the annotations
+      bdocc.fixupOffsets("p");
+      bdocl.fixupOffsets("p");
+      Assert.assertEquals(18, columns.getEnd(2));
+      Assert.assertEquals(asJson(bdocl), asJson(bdocc));
+      cset.toList();
+      Assert.assertNull(cset.columns());
+      Assert.assertEquals(asJson(bdocl), asJson(bdocc));
+      cset.toColumns();
+      Assert.assertEquals(asJson(bdocl), asJson(bdocc));
+      // update a GATE document from the columns
+      Document doc2 = new GateDocumentUpdater(Factory.newDocument(sampleText1)).
+              fromBdoc(bdocc);
+      Assert.assertEquals(3, doc2.getAnnotations().size());
+      Assert.assertEquals(1, doc2.getAnnotations("Other").size());
+      Assert.assertEquals(19L, (long)doc2.getAnnotations().get("Emoji").
+              iterator().next().getEndNode().getOffset());
+      Factory.deleteResource(doc2);
+    }
+  }
+  
+  /**
+   * Test that loading shares annotation type and feature name strings.
+   * @throws ResourceInstantiationException if error
+   * @throws InvalidOffsetException  if error
+   */
+  @Test
+  public void testCanonicalStrings() throws ResourceInstantiationException, InvalidOffsetException {
+    Document doc = Factory.newDocument(sampleText1);
+    AnnotationSet defSet = doc.getAnnotations();
+    defSet.add(0L, 4L, "Token", Utils.featureMap("string", "This"));
+    defSet.add(5L, 7L, "Token", Utils.featureMap("string", "is"));
+    BdocDocument bdoc = new BdocDocumentBuilder().fromGate(doc).buildBdoc();
+    for(Format fmt : new Format[]{Format.JSON_MAP, Format.MSGPACK, Format.YAML_MAP}) {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      new Saver().format(fmt).to(baos).save(bdoc);
+      List<BdocAnnotation> anns = new ArrayList<>();
+      for(int i = 0; i < 2; i++) {
+        BdocDocument loaded = new Loader().format(fmt).
+                from(new ByteArrayInputStream(baos.toByteArray())).load_bdoc();
+        anns.addAll(loaded.annotation_sets.get("").annotations);
+      }
+      Assert.assertEquals(4, anns.size());
+      for(BdocAnnotation ann : anns) {
+        Assert.assertSame(anns.get(0).type, ann.type);
+        Assert.assertSame(anns.get(0).features.keySet().iterator().next(), 
+                ann.features.keySet().iterator().next());
+      }
+    }
+  }
+  
+  /**
+   * Test that building the annotation sets in parallel gives the same result.
+   * @throws ResourceInstantiationException if error
+   * @throws InvalidOffsetException  if error
+   */
+  @Test
+  public void testBuildBdocParallel() throws ResourceInstantiationException, InvalidOffsetException {
+    Document doc = Factory.newDocument(sampleText1);
+    for(int s = 0; s < 12; s++) {
+      AnnotationSet set = (s == 0) ? doc.getAnnotations() : doc.getAnnotations("Set"+s);
+      for(long i = 0; i + 4 < sampleText1.length(); i += 2) {
+        set.add(i, i + 2 + s % 3, "Type"+(i % 3), Utils.featureMap("set", s));
+      }
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(3);
+    try {
+      for(boolean python : new boolean[]{false, true}) {
+        BdocDocumentBuilder builder = new BdocDocumentBuilder().fromGate(doc);
+        if(python) {
+          builder.pythonOffsets();
+        }
+        String expected = asJson(builder.buildBdoc());
+        Assert.assertEquals(expected, asJson(builder.setExecutor(pool).buildBdoc()));
+        Assert.assertEquals(expected, 
+                asJson(builder.setExecutor(ForkJoinPool.commonPool()).buildBdoc()));
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+  
+  /**
+   * Test that preparing the annotation sets in parallel when updating a 
+   * GATE document gives the same result.
+   * @throws ResourceInstantiationException if error
+   * @throws InvalidOffsetException  if error
+   */
+  @Test
+  public void testUpdateGateParallel() throws ResourceInstantiationException, InvalidOffsetException {
+    Document doc = Factory.newDocument(sampleText1);
+    for(int s = 0; s < 12; s++) {
+      AnnotationSet set = (s == 0) ? doc.getAnnotations() : doc.getAnnotations("Set"+s);
+      for(long i = 0; i + 4 < sampleText1.length(); i += 3) {
+        set.add(i, i + 2 + s % 3, "Type"+(i % 3), Utils.featureMap("set", s));
+      }
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(3);
+    try {
+      for(boolean python : new boolean[]{false, true}) {
+        BdocDocumentBuilder builder = new BdocDocumentBuilder().fromGate(doc);
+        if(python) {
+          builder.pythonOffsets();
+        }
+        BdocDocument bdoc = builder.buildBdoc();
+        String expected = asJson(new BdocDocumentBuilder().fromGate(
+                new GateDocumentUpdater(Factory.newDocument(sampleText1)).
+                        fromBdoc(bdoc)).buildBdoc());
+        Document doc2 = new GateDocumentUpdater(Factory.newDocument(sampleText1)).
+                setExecutor(pool).fromBdoc(bdoc);
+        Assert.assertEquals(expected, 
+                asJson(new BdocDocumentBuilder().fromGate(doc2).buildBdoc()));
+        bdoc.annotation_sets.get("Set1").toColumns();
+        Document doc3 = new GateDocumentUpdater(Factory.newDocument(sampleText1)).
+                setExecutor(ForkJoinPool.commonPool()).fromBdoc(bdoc);
+        Assert.assertEquals(expected, 
+                asJson(new BdocDocumentBuilder().fromGate(doc3).buildBdoc()));
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+  
+  /**
+   * Test the fast path for loading into an empty GATE document.
+   * @throws ResourceInstantiationException if error
+   * @throws InvalidOffsetException  if error
+   */
+  @Test
+  public void testBulkLoad() throws ResourceInstantiationException, InvalidOffsetException {
+    Document doc = Factory.newDocument(sampleText1);
+    doc.getAnnotations().add(0L, 4L, "Token", Utils.featureMap("string", "This"));
+    doc.getAnnotations().add(17L, 19L, "Emoji", Utils.featureMap());
+    doc.getAnnotations("Other").add(5L, 7L, "Token", Utils.featureMap("string", "is"));
+    BdocDocument bdoc = new BdocDocumentBuilder().fromGate(doc).pythonOffsets().buildBdoc();
+    String expected = asJson(new BdocDocumentBuilder().fromGate(
+            new GateDocumentUpdater(sampleText1).fromBdoc(bdoc)).buildBdoc());
+    Assert.assertEquals(expected, 
+            asJson(new BdocDocumentBuilder().fromGate(bdoc.toGateDocument()).buildBdoc()));
+    // with existing annotations, the annotation with the same id is handled 
+    // as usual and added with a new id
+    Document doc2 = Factory.newDocument(sampleText1);
+    doc2.getAnnotations().add(0L, 4L, "Token", Utils.featureMap());
+    new GateDocumentUpdater(doc2).bulkLoad(true).fromBdoc(bdoc);
+    Assert.assertEquals(3, doc2.getAnnotations().size());
+    Assert.assertEquals(1, doc2.getAnnotations("Other").size());
+    // after a failing load, the updater does not use the fast path for the
+    // annotations which have already been added
+    BdocDocument bad = new BdocDocumentBuilder().fromGate(doc).pythonOffsets().buildBdoc();
+    BdocAnnotation badann = new BdocAnnotation();
+    badann.type = "Token";
+    badann.id = 10;
+    badann.start = 0;
+    badann.end = 1000;
+    bad.annotation_sets.get("").annotations.add(badann);
+    Document doc3 = Factory.newDocument(sampleText1);
+    GateDocumentUpdater gdu = new GateDocumentUpdater(doc3).bulkLoad(true);
+    try {
+      gdu.fromBdoc(bad);
+      Assert.fail("Expected an exception for the invalid offset");
+    } catch(RuntimeException ex) {
+      // expected
+    }
+    Assert.assertEquals(2, doc3.getAnnotations().size());
+    gdu.fromBdoc(bdoc);
+    Assert.assertEquals(4, doc3.getAnnotations().size());
+  }
+  
+  /**
+   * Test loading and replaying a ChangeLog with typed changes.
+   * @throws ResourceInstantiationException if error
+   */
+  @Test
+  public void testChangeLogTyped() throws ResourceInstantiationException {
+    String json = "{\"offset_type\": \"p\", \"changes\": [" +
+            "{\"command\": \"doc-feature:set\", \"feature\": \"f1\", \"value\": 12}," +
+            "{\"command\": \"annotation:add\", \"set\": \"\", \"start\": 17, " +
+            "\"end\": 18, \"type\": \"Emoji\", \"features\": {\"a\": 1}, \"id\": 0}," +
+            "{\"command\": \"annotation:add\", \"set\": \"\", \"start\": 19, " +
+            "\"end\": 27, \"type\": \"Token\", \"features\": {}, \"id\": 1}," +
+            "{\"command\": \"ann-feature:set\", \"set\": \"\", \"id\": 1, " +
+            "\"feature\": \"string\", \"value\": \"document\"}," +
+            "{\"command\": \"some:command\"}," +
+            "{\"command\": \"annotation:add\", \"set\": \"S1\", \"start\": 0, " +
+            "\"end\": 4, \"type\": \"Token\", \"features\": null, \"id\": 0}," +
+            "{\"command\": \"annotations:remove\", \"set\": \"S1\"}," +
+            "{\"command\": \"annotation:add\", \"set\": \"S1\", \"start\": 5, " +
+            "\"end\": 7, \"type\": \"Token\", \"features\": null, \"id\": 0}" +
+            "]}";
+    ChangeLog log = new Loader().fromString(json).format(Format.JSON_MAP).load_log();
+    // the maps are still available after loading and after conversion
+    Assert.assertEquals(7, log.changes.size());
+    Assert.assertEquals("annotation:add", log.changes.get(1).get("command"));
+    List<Change> entries = log.entries();
+    Assert.assertEquals(7, entries.size());
+    Assert.assertEquals(Change.Command.ANNOTATION_ADD, entries.get(1).command);
+    Assert.assertEquals(17, log.changes.get(1).get("start"));
+    Map<String, Object> last = log.changes.remove(6);
+    Assert.assertEquals(6, log.entries().size());
+    log.changes.add(last);
+    Assert.assertEquals(Change.Command.ANNOTATION_ADD, log.entries().get(6).command);
+    Assert.assertEquals(17, entries.get(1).start);
+    // the typed changes and the map representation are equivalent
+    ChangeLog maplog = new ChangeLog();
+    maplog.offset_type = "p";
+    for(Map<String, Object> map : log.changeMaps()) {
+      maplog.changes.add(new LinkedHashMap<>(map));
+    }
+    Assert.assertEquals(entries.toString(), maplog.entries().toString());
+    
+    Document doc = new GateDocumentUpdater(Factory.newDocument(sampleText1)).
+            fromChangeLog(log);
+    Assert.assertEquals(12, doc.getFeatures().get("f1"));
+    AnnotationSet defset = doc.getAnnotations();
+    Assert.assertEquals(2, defset.size());
+    Assert.assertEquals(17L, (long)defset.get(0).getStartNode().getOffset());
+    Assert.assertEquals(19L, (long)defset.get(0).getEndNode().getOffset());
+    Assert.assertEquals("document", defset.get(1).getFeatures().get("string"));
+    Assert.assertEquals("document", Utils.stringFor(doc, defset.get(1)));
+    Assert.assertEquals(1, doc.getAnnotations("S1").size());
+    Assert.assertEquals(5L, (long)doc.getAnnotations("S1").firstNode().getOffset());
+  }
+  
+  /**
+   * Test that an annotation:add change without an id fails.
+   * @throws ResourceInstantiationException if error
+   */
+  @Test
+  public void testChangeLogMissingId() throws ResourceInstantiationException {
+    String json = "{\"offset_type\": \"j\", \"changes\": [" +
+            "{\"command\": \"annotation:add\", \"set\": \"\", \"start\": 0, " +
+            "\"end\": 4, \"type\": \"Token\", \"features\": {}}]}";
+    ChangeLog log = new Loader().fromString(json).format(Format.JSON_MAP).load_log();
+    Assert.assertEquals(Change.NO_ID, log.entries().get(0).id);
+    Assert.assertNull(log.changes.get(0).get("id"));
+    Document doc = Factory.newDocument(sampleText1);
+    try {
+      new GateDocumentUpdater(doc).fromChangeLog(log);
+      Assert.fail("Expected an exception for the missing id");
+    } catch(GateRuntimeException ex) {
+      // expected
+    }
+    try {
+      new Loader().fromString(json).format(Format.JSON_MAP).
+              load_log(new GateDocumentUpdater(doc));
+      Assert.fail("Expected an exception for the missing id");
+    } catch(GateRuntimeException ex) {
+      // expected
+    }
+    Assert.assertEquals(0, doc.getAnnotations().size());
+  }
+  
+  /**
+   * Test applying a ChangeLog while it is read.
+   * @throws ResourceInstantiationException if error
+   */
+  @Test
+  public void testChangeLogStreaming() throws ResourceInstantiationException {
+    // the offset type comes after the changes here
+    String json = "{\"changes\": [" +
+            "{\"command\": \"annotation:add\", \"set\": \"\", \"start\": 17, " +
+            "\"end\": 18, \"type\": \"Emoji\", \"features\": {}, \"id\": 0}," +
+            "{\"command\": \"annotation:add\", \"set\": \"S1\", \"start\": 19, " +
+            "\"end\": 27, \"type\": \"Token\", \"features\": {}, \"id\": 0}," +
+            "{\"command\": \"ann-feature:set\", \"set\": \"S1\", \"id\": 0, " +
+            "\"feature\": \"string\", \"value\": \"document\"}" +
+            "], \"offset_type\": \"p\"}";
+    ChangeLog log = new Loader().fromString(json).format(Format.JSON_MAP).load_log();
+    String expected = asJsonNoName(
+            new GateDocumentUpdater(Factory.newDocument(sampleText1)).
+                    fromChangeLog(log));
+    Document doc = new Loader().fromString(json).format(Format.JSON_MAP).
+            load_log(new GateDocumentUpdater(Factory.newDocument(sampleText1)));
+    Assert.assertEquals(expected, asJsonNoName(doc));
+    Assert.assertEquals("document", 
+            Utils.stringFor(doc, doc.getAnnotations("S1").get(0)));
+    
+    // saved ChangeLogs have the offset type first
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    new Saver().format(Format.MSGPACK).to(bytes).save(log);
+    doc = new Loader().from(new ByteArrayInputStream(bytes.toByteArray())).
+            format(Format.MSGPACK).
+            load_log(new GateDocumentUpdater(Factory.newDocument(sampleText1)));
+    Assert.assertEquals(expected, asJsonNoName(doc));
+    String saved = new Saver().format(Format.JSON_MAP).asString().save(log);
+    doc = new Loader().fromString(saved).format(Format.JSON_MAP).
+            load_log(new GateDocumentUpdater(Factory.newDocument(sampleText1)));
+    Assert.assertEquals(expected, asJsonNoName(doc));
+    
+    // changes applied with a different offset type cannot be undone
+    GateDocumentUpdater gdu = new GateDocumentUpdater(Factory.newDocument(sampleText1));
+    gdu.setOffsetType("j");
+    try {
+      new Loader().fromString(json).format(Format.JSON_MAP).load_log(gdu);
+      Assert.fail("Expected an exception for the late offset type");
+    } catch(GateRuntimeException ex) {
+      // expected
+    }
+    
+    // a null offset type is the same as java offsets
+    gdu = new GateDocumentUpdater(Factory.newDocument(sampleText1));
+    gdu.setOffsetType("j");
+    doc = new Loader().fromString(json.replace("\"p\"", "null")).
+            format(Format.JSON_MAP).load_log(gdu);
+    Assert.assertEquals(" documen", 
+            Utils.stringFor(doc, doc.getAnnotations("S1").get(0)));
+  }
+  
+  /**
+   * Test compacting a ChangeLog.
+   * @throws ResourceInstantiationException if error
+   * @throws InvalidOffsetException  if error
+   */
+  @Test
+  public void testChangeLogCompact() throws ResourceInstantiationException, InvalidOffsetException {
+    List<Change> chgs = new ArrayList<>();
+    chgs.add(change(Change.Command.DOC_FEATURE_SET, null, -1, "f1", 1));
+    chgs.add(change(Change.Command.DOC_FEATURE_SET, null, -1, "f2", 1));
+    chgs.add(change(Change.Command.DOC_FEATURE_SET, null, -1, "f1", 2));
+    chgs.add(addChange("", 10, 0, 4, "Token"));
+    chgs.add(change(Change.Command.ANN_FEATURE_SET, "", 10, "string", "x"));
+    chgs.add(change(Change.Command.ANN_FEATURE_SET, "", 10, "string", "y"));
+    chgs.add(change(Change.Command.ANN_FEATURE_SET, "", 10, "kind", "word"));
+    chgs.add(change(Change.Command.ANN_FEATURE_REMOVE, "", 10, "kind", null));
+    // added and removed again
+    chgs.add(addChange("", 11, 5, 7, "Token"));
+    chgs.add(change(Change.Command.ANN_FEATURE_SET, "", 11, "string", "is"));
+    chgs.add(change(Change.Command.ANNOTATION_REMOVE, "", 11, null, null));
+    // changes to an existing annotation before it gets removed
+    chgs.add(change(Change.Command.ANN_FEATURE_SET, "", 0, "string", "This"));
+    chgs.add(change(Change.Command.ANNOTATION_REMOVE, "", 0, null, null));
+    // everything before the clear
+    chgs.add(addChange("S1", 0, 0, 4, "Token"));
+    chgs.add(change(Change.Command.ANN_FEATURE_SET, "S1", 1, "string", "is"));
+    chgs.add(change(Change.Command.ANNOTATIONS_CLEAR, "S1", -1, null, null));
+    chgs.add(addChange("S1", 1, 8, 9, "Token"));
+    ChangeLog log = ChangeLog.fromEntries(chgs, "j");
+    ChangeLog copy = ChangeLog.fromEntries(new ArrayList<>(chgs), "j");
+    
+    List<Change> compacted = log.compact().entries();
+    Assert.assertEquals(8, compacted.size());
+    Assert.assertEquals(2, compacted.get(1).value);
+    Assert.assertEquals("y", compacted.get(3).value);
+    Assert.assertEquals(Change.Command.ANN_FEATURE_REMOVE, compacted.get(4).command);
+    Assert.assertEquals(Change.Command.ANNOTATION_REMOVE, compacted.get(5).command);
+    Assert.assertEquals(Change.Command.ANNOTATIONS_CLEAR, compacted.get(6).command);
+    
+    // replaying gives the same result
+    Document doc1 = Factory.newDocument(sampleText1);
+    doc1.getAnnotations().add(0, 0L, 4L, "Token", Utils.featureMap());
+    doc1.getAnnotations("S1").add(1, 5L, 7L, "Token", Utils.featureMap());
+    Document doc2 = Factory.newDocument(sampleText1);
+    doc2.getAnnotations().add(0, 0L, 4L, "Token", Utils.featureMap());
+    doc2.getAnnotations("S1").add(1, 5L, 7L, "Token", Utils.featureMap());
+    new GateDocumentUpdater(doc1).fromChangeLog(copy);
+    new GateDocumentUpdater(doc2).compactChangeLog(true).fromChangeLog(
+            ChangeLog.fromEntries(new ArrayList<>(chgs), "j"));
+    Assert.assertEquals(asJsonNoName(doc1), asJsonNoName(doc2));
+  }
+  
+  private static Change change(Change.Command command, String set, int id, 
+          String feature, Object value) {
+    Change chg = new Change(command);
+    chg.set = set;
+    chg.id = id;
+    chg.feature = feature;
+    chg.value = value;
+    return chg;
+  }
+  
+  private static Change addChange(String set, int id, int start, int end, String type) {
+    Change chg = new Change(Change.Command.ANNOTATION_ADD);
+    chg.set = set;
+    chg.id = id;
+    chg.start = start;
+    chg.end = end;
+    chg.type = type;
+    return chg;
+  }
+  
+  /**
+   * Test recording the changes of a GATE document as a ChangeLog.
+   * @throws ResourceInstantiationException if error
+   * @throws InvalidOffsetException  if error
+   */
+  @Test
+  public void testChangeLogRecorder() throws ResourceInstantiationException, InvalidOffsetException {
+    Document doc = Factory.newDocument(sampleText1);
+    doc.getFeatures().put("f1", 1);
+    doc.getFeatures().put("f2", 2);
+    doc.getAnnotations().add(0L, 4L, "Token", Utils.featureMap("string", "This"));
+    doc.getAnnotations().add(5L, 7L, "Token", Utils.featureMap("string", "is"));
+    doc.getAnnotations("Old").add(8L, 9L, "Token", Utils.featureMap());
+    BdocDocument bdoc = new BdocDocumentBuilder().fromGate(doc).pythonOffsets().buildBdoc();
+    
+    ChangeLogRecorder recorder = new ChangeLogRecorder(doc).pythonOffsets().start();
+    doc.getFeatures().put("f1", 11);
+    doc.getFeatures().remove("f2");
+    doc.getFeatures().put("f3", "x");
+    Integer id = doc.getAnnotations().add(20L, 28L, "Token", Utils.featureMap());
+    doc.getAnnotations().get(id).getFeatures().put("string", "document");
+    doc.getAnnotations().get(0).getFeatures().put("kind", "word");
+    doc.getAnnotations().remove(doc.getAnnotations().get(1));
+    doc.getAnnotations("New").add(17L, 19L, "Emoji", Utils.featureMap("a", 1));
+    Integer oldid = doc.getAnnotations("Old").add(0L, 4L, "Token", Utils.featureMap());
+    doc.getAnnotations("Old").get(oldid).getFeatures().put("string", "This");
+    doc.removeAnnotationSet("Old");
+    ChangeLog log = recorder.stop().getChangeLog();
+    Assert.assertEquals("p", log.offset_type);
+    // the annotation added to the removed set still has its features
+    Change oldadd = log.entries().stream().filter(
+            chg -> chg.command == Change.Command.ANNOTATION_ADD && "Old".equals(chg.set)).
+            findFirst().get();
+    Assert.assertEquals("This", oldadd.features.get("string"));
+    // changes after stopping are not recorded
+    doc.getFeatures().put("f4", 4);
+    doc.getFeatures().remove("f4");
+    
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    new Saver().format(Format.MSGPACK).to(bytes).save(log);
+    String json = new Saver().format(Format.JSON_MAP).asString().save(log);
+    Document doc2 = new Loader().from(new ByteArrayInputStream(bytes.toByteArray())).
+            format(Format.MSGPACK).load_log(new GateDocumentUpdater(bdoc.toGateDocument()));
+    Document doc3 = new Loader().fromString(json).format(Format.JSON_MAP).
+            load_log(new GateDocumentUpdater(bdoc.toGateDocument()));
+    Assert.assertEquals(asJsonNoName(doc), asJsonNoName(doc2));
+    Assert.assertEquals(asJsonNoName(doc), asJsonNoName(doc3));
+    Assert.assertNull(doc2.getNamedAnnotationSets().get("Old"));
+    Assert.assertEquals(17L, 
+            (long)doc2.getAnnotations("New").iterator().next().getStartNode().getOffset());
+  }
+  
+  private String asJson(BdocDocument bdoc) {
+    return new Saver().format(Format.JSON_MAP).asString().save(bdoc);
+  }
+  
+  private String asJsonNoName(Document doc) {
+    BdocDocument bdoc = new BdocDocumentBuilder().fromGate(doc).buildBdoc();
+    bdoc.name = null;
+    return asJson(bdoc);
+  }
+  
 }
@@ -19,11 +19,18 @@
  */
 
 package gate.plugin.format.bdoc.tests;
+import gate.Annotation;
 import gate.Document;
 import gate.Factory;
 import gate.Gate;
 import gate.gui.ResourceHelper;
+import gate.lib.basicdocument.ChangeLog;
+import gate.lib.basicdocument.docformats.Format;
+import gate.lib.basicdocument.docformats.Saver;
 import gate.test.GATEPluginTestCase;
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
 /**
  * Test the FormatBdcoJson class.
  * @author Johann Petrak
@@ -43,4 +50,30 @@ public class TestFormatBdocApi extends GATEPluginTestCase {
     System.err.println("JSON="+json);
   }
   
+  /**
+   * Test updating a document from a MsgPack ChangeLog.
+   * @throws Exception  if error
+   */
+  public void testUpdateFromLogMsgPack() throws Exception {
+    Document doc = Factory.newDocument(expectedText);
+    ResourceHelper rh = (ResourceHelper)Gate.getCreoleRegister()
+                     .get("gate.plugin.format.bdoc.API")
+                     .getInstantiations().iterator().next();
+    ChangeLog log = new ChangeLog();
+    log.offset_type = "p";
+    Map<String, Object> chg = new HashMap<>();
+    chg.put("command", "annotation:add");
+    chg.put("set", "");
+    chg.put("start", 11);
+    chg.put("end", 19);
+    chg.put("type", "Token");
+    chg.put("id", 0);
+    log.changes.add(chg);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    new Saver().format(Format.MSGPACK).to(bytes).save(log);
+    rh.call("update_document_from_logmsgpack", doc, (Object)bytes.toByteArray());
+    Annotation ann = doc.getAnnotations().get(0);
+    assertEquals("document", gate.Utils.stringFor(doc, ann));
+  }
+  
 }
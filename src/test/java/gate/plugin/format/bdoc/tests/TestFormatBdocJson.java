@@ -25,12 +25,28 @@ import java.net.URL;
 import gate.Document;
 import gate.Factory;
 import gate.FeatureMap;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gate.lib.basicdocument.BdocAnnotation;
+import gate.lib.basicdocument.BdocDocument;
+import gate.lib.basicdocument.BdocDocumentBuilder;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import gate.lib.basicdocument.GateDocumentUpdater;
+import gate.lib.basicdocument.docformats.Format;
+import gate.lib.basicdocument.docformats.JsonFormatSupportMap;
+import gate.lib.basicdocument.docformats.Loader;
+import gate.lib.basicdocument.docformats.Saver;
+import gate.plugin.format.bdoc.BaseFormatBdoc;
 import gate.plugin.format.bdoc.ExporterBdocJson;
 import gate.plugin.format.bdoc.ExporterBdocMsgPack;
 import gate.test.GATEPluginTestCase;
 import gate.util.GateException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import static junit.framework.TestCase.assertEquals;
 /**
  * Test the FormatBdcoJson class.
@@ -142,4 +158,181 @@ public class TestFormatBdocJson extends GATEPluginTestCase {
     
   }
   
+  /**
+   * Test that the JSON written is identical to what databind produces.
+   * 
+   * @throws Exception if error
+   */
+  public void testSaveJsonLayout() throws Exception {
+    ObjectMapper om = new ObjectMapper();
+    BdocDocument bdoc1 = Utils.makeTestBdoc1();
+    BdocDocument bdoc2 = new BdocDocumentBuilder().fromGate(Utils.makeTestDocument1()).buildBdoc();
+    for(BdocDocument bdoc : new BdocDocument[]{bdoc1, bdoc2}) {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      new JsonFormatSupportMap().save(bdoc, baos);
+      assertEquals(new String(om.writeValueAsBytes(bdoc), "UTF-8"), baos.toString("UTF-8"));
+      // the offset type comes first so annotations can get added while reading
+      String json = baos.toString("UTF-8");
+      assertTrue(json.indexOf("\"offset_type\"") < json.indexOf("\"annotation_sets\""));
+    }
+  }
+  
+  /**
+   * Test that null keys in nested maps are not saved.
+   * 
+   * @throws Exception if error
+   */
+  public void testSaveNullKeys() throws Exception {
+    Map<String, Object> nested = new HashMap<>();
+    nested.put(null, 1);
+    nested.put("k", 2);
+    BdocDocument bdoc = new BdocDocument();
+    bdoc.text = "text";
+    bdoc.features = new HashMap<>();
+    bdoc.features.put("nested", nested);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    new JsonFormatSupportMap().save(bdoc, baos);
+    BdocDocument bdoc2 = new JsonFormatSupportMap().load_bdoc(
+            new ByteArrayInputStream(baos.toByteArray()));
+    assertEquals(Collections.singletonMap("k", 2), bdoc2.features.get("nested"));
+  }
+  
+  /**
+   * Test that the JSON loaded is identical to what databind produces.
+   * 
+   * @throws Exception if error
+   */
+  public void testLoadJson() throws Exception {
+    ObjectMapper om = new ObjectMapper();
+    JsonFormatSupportMap fs = new JsonFormatSupportMap();
+    byte[] json = om.writeValueAsBytes(Utils.makeTestBdoc1());
+    BdocDocument expected = om.readValue(json, BdocDocument.class);
+    BdocDocument actual = fs.load_bdoc(new ByteArrayInputStream(json));
+    assertEquals(
+            new String(om.writeValueAsBytes(expected), "UTF-8"), 
+            new String(om.writeValueAsBytes(actual), "UTF-8"));
+    // fields in any order, unknown fields get ignored
+    String json2 = "{\"offset_type\":\"p\", \"unknown\":{\"a\":[1,2]}, " +
+            "\"annotation_sets\":{\"S1\":{\"annotations\":[" +
+            "{\"end\":3,\"start\":1,\"extra\":null,\"type\":\"T\",\"id\":7,\"features\":{\"f\":[1,2.5]}}]," +
+            "\"next_annid\":8,\"name\":\"S1\"}}, \"text\":\"abcd\"}";
+    BdocDocument bdoc = fs.load_bdoc(new ByteArrayInputStream(json2.getBytes("UTF-8")));
+    assertEquals("p", bdoc.offset_type);
+    assertEquals("abcd", bdoc.text);
+    assertNull(bdoc.name);
+    assertNull(bdoc.features);
+    assertEquals((Integer)8, bdoc.annotation_sets.get("S1").next_annid);
+    BdocAnnotation ann = bdoc.annotation_sets.get("S1").annotations.get(0);
+    assertEquals("T", ann.type);
+    assertEquals((Integer)7, ann.id);
+    assertEquals(1, ann.start);
+    assertEquals(3, ann.end);
+    assertEquals(java.util.Arrays.asList(1, 2.5), ann.features.get("f"));
+  }
+  
+  /**
+   * Test that saving directly from the builder gives the same document as 
+   * saving the built BdocDocument.
+   * 
+   * @throws Exception if error
+   */
+  public void testSaveFromBuilder() throws Exception {
+    Document doc = Utils.makeTestDocument1();
+    doc.getAnnotations().add(10L, 12L, "Emoji", Factory.newFeatureMap());
+    doc.getAnnotations("Set1").add(0L, 1L, "A", gate.Utils.featureMap("f", 2.5));
+    doc.getAnnotations("Set2").add(13L, 20L, "B", gate.Utils.featureMap("f", "x"));
+    // output is compared after normalizing the order of map entries
+    ObjectMapper om = new ObjectMapper();
+    om.configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+    for(Format fmt : new Format[]{Format.JSON_MAP, Format.MSGPACK}) {
+      BdocDocumentBuilder builder = new BdocDocumentBuilder().fromGate(doc).
+              setAnnotationSetNames(java.util.Arrays.asList("", "Set2")).
+              setIncludePlaceholderSets(true).pythonOffsets();
+      ByteArrayOutputStream direct = new ByteArrayOutputStream();
+      new Saver().to(direct).format(fmt).save(builder);
+      ByteArrayOutputStream built = new ByteArrayOutputStream();
+      new Saver().to(built).format(fmt).save(builder.buildBdoc());
+      BdocDocument bdocDirect = new Loader().format(fmt).
+              from(new ByteArrayInputStream(direct.toByteArray())).load_bdoc();
+      BdocDocument bdocBuilt = new Loader().format(fmt).
+              from(new ByteArrayInputStream(built.toByteArray())).load_bdoc();
+      assertEquals(om.writeValueAsString(bdocBuilt), om.writeValueAsString(bdocDirect));
+      assertEquals("p", bdocDirect.offset_type);
+      assertEquals(0, bdocDirect.annotation_sets.get("Set1").annotations.size());
+    }
+  }
+  
+  /**
+   * Test that loading directly into a GATE document gives the same document
+   * as loading the BdocDocument first.
+   * 
+   * @throws Exception if error
+   */
+  public void testLoadIntoGateDocument() throws Exception {
+    Document doc = Utils.makeTestDocument1();
+    doc.getAnnotations().add(9L, 11L, "Emoji", Factory.newFeatureMap());
+    doc.getAnnotations("Set1").add(13L, 20L, "B", gate.Utils.featureMap("f", "x"));
+    ObjectMapper om = new ObjectMapper();
+    om.configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+    String expected = om.writeValueAsString(new BdocDocumentBuilder().fromGate(doc).buildBdoc());
+    for(Format fmt : new Format[]{Format.JSON_MAP, Format.MSGPACK, Format.YAML_MAP}) {
+      // with python offsets, the JSON offset_type comes after the annotations
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      new Saver().to(baos).format(fmt).save(
+              new BdocDocumentBuilder().fromGate(doc).pythonOffsets());
+      Document loaded = Factory.newDocument("");
+      GateDocumentUpdater gdu = new GateDocumentUpdater(loaded).
+              handleNewAnnotation(GateDocumentUpdater.HandleNewAnns.ADD_WITH_BDOC_ID);
+      new Loader().format(fmt).from(new ByteArrayInputStream(baos.toByteArray())).
+              load_bdoc(gdu);
+      assertEquals(expected, 
+              om.writeValueAsString(new BdocDocumentBuilder().fromGate(loaded).buildBdoc()));
+      Factory.deleteResource(loaded);
+    }
+    // annotations before the text get buffered until the text is known
+    String json = "{\"annotation_sets\":{\"\":{\"annotations\":[" +
+            "{\"type\":\"T\",\"id\":3,\"start\":1,\"end\":2}]}}," +
+            "\"text\":\"a\uD83D\uDCA9b\",\"offset_type\":\"p\"}";
+    Document loaded = Factory.newDocument("");
+    new Loader().format(Format.JSON_MAP).fromString(json).
+            load_bdoc(new GateDocumentUpdater(loaded));
+    Annotation ann = loaded.getAnnotations().get(3);
+    assertEquals("T", ann.getType());
+    assertEquals(1L, (long)ann.getStartNode().getOffset());
+    assertEquals(3L, (long)ann.getEndNode().getOffset());
+    Factory.deleteResource(loaded);
+  }
+  
+  /**
+   * Test format detection and loading generic gzipped bdoc files.
+   * 
+   * @throws Exception if error
+   */
+  public void testLoadDocumentBdocGzip() throws Exception {
+    assertEquals(Format.JSON_MAP, BaseFormatBdoc.sniffFormat(new java.io.BufferedInputStream(
+            new ByteArrayInputStream("\uFEFF \n{\"text\":\"x\"}".getBytes("UTF-8")))));
+    assertEquals(Format.JSON_MAP, BaseFormatBdoc.sniffFormat(new java.io.BufferedInputStream(
+            new ByteArrayInputStream("\uFEFF{}".getBytes("UTF-16LE")))));
+    assertEquals(Format.JSON_MAP, BaseFormatBdoc.sniffFormat(new java.io.BufferedInputStream(
+            new ByteArrayInputStream("\uFEFF{}".getBytes("UTF-16BE")))));
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    new Saver().to(baos).format(Format.MSGPACK).save(Utils.makeTestBdoc1());
+    java.io.BufferedInputStream bis = new java.io.BufferedInputStream(
+            new ByteArrayInputStream(baos.toByteArray()));
+    assertEquals(Format.MSGPACK, BaseFormatBdoc.sniffFormat(bis));
+    // the stream is reset so it can still get loaded 
+    assertEquals(Utils.CONTENT1, 
+            new Loader().from(bis).format(Format.MSGPACK).load_bdoc().text);
+    
+    URL docURL = this.getClass().getResource("/resources/testdoc1.bdocjs.gz");
+    FeatureMap params = Factory.newFeatureMap();
+    params.put(Document.DOCUMENT_URL_PARAMETER_NAME, docURL);
+    params.put(Document.DOCUMENT_ENCODING_PARAMETER_NAME, "UTF-8");
+    params.put(Document.DOCUMENT_MIME_TYPE_PARAMETER_NAME, "text/bdoc+gzip");
+    Document doc = (Document)Factory.createResource("gate.corpora.DocumentImpl", params);
+    assertEquals(expectedText, doc.getContent().toString());
+    assertEquals(1, doc.getAnnotations("Set1").size());
+    Factory.deleteResource(doc);
+  }
+  
 }
@@ -24,19 +24,33 @@ import gate.AnnotationSet;
 import gate.Document;
 import gate.Factory;
 import gate.FeatureMap;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import gate.creole.ResourceInstantiationException;
+import gate.lib.basicdocument.BdocAnnotation;
+import gate.lib.basicdocument.BdocAnnotationSet;
 import gate.lib.basicdocument.BdocDocument;
 import gate.lib.basicdocument.BdocDocumentBuilder;
+import gate.lib.basicdocument.ChangeLog;
+import gate.lib.basicdocument.GateDocumentUpdater;
 import gate.lib.basicdocument.docformats.Format;
 import gate.lib.basicdocument.docformats.Loader;
+import gate.lib.basicdocument.docformats.MsgPackFormatSupport;
 import gate.lib.basicdocument.docformats.Saver;
 import gate.plugin.format.bdoc.ExporterBdocMsgPack;
 import gate.test.GATEPluginTestCase;
 import gate.util.GateException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import gate.plugin.format.bdoc.tests.Utils;
 import gate.util.InvalidOffsetException;
+import org.msgpack.jackson.dataformat.MessagePackFactory;
 /**
  * Test the FormatBdcoJson class.
  * @author Johann Petrak
@@ -87,4 +101,251 @@ public class TestFormatMsgPack extends GATEPluginTestCase {
     assertEquals((long)ann.getEndNode().getOffset(), 35L);
   }
 
+  /**
+   * Test that null keys in nested maps are not saved, as for JSON.
+   * 
+   * @throws Exception if error
+   */
+  public void testSaveNullKeys() throws Exception {
+    BdocDocument bdoc = Utils.makeTestBdoc1();
+    Map<String, Object> nested = new HashMap<>();
+    nested.put(null, 1);
+    nested.put("k", 2);
+    bdoc.features.put("nested", nested);
+    for(Format fmt : new Format[]{Format.MSGPACK, Format.JSON_MAP}) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      new Saver().format(fmt).to(bytes).save(bdoc);
+      BdocDocument bdoc2 = new Loader().format(fmt).
+              from(new ByteArrayInputStream(bytes.toByteArray())).load_bdoc();
+      assertEquals(Collections.singletonMap("k", 2), bdoc2.features.get("nested"));
+    }
+  }
+
+  /**
+   * Test that the sm2 bytes are identical to writing each value with Jackson.
+   * 
+   * @throws IOException error
+   */
+  public void testSaveSm2Layout() throws IOException {
+    BdocDocument bdoc = Utils.makeTestBdoc1();
+    ObjectMapper om = new ObjectMapper(new MessagePackFactory());
+    om.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    om.writeValue(expected, "sm2");
+    om.writeValue(expected, bdoc.offset_type);
+    om.writeValue(expected, bdoc.text);
+    om.writeValue(expected, bdoc.name);
+    om.writeValue(expected, bdoc.features);
+    om.writeValue(expected, bdoc.annotation_sets.size());
+    for(Map.Entry<String,BdocAnnotationSet> e : bdoc.annotation_sets.entrySet()) {
+      om.writeValue(expected, e.getKey());
+      om.writeValue(expected, e.getValue().next_annid);
+      om.writeValue(expected, e.getValue().annotations.size());
+      for(BdocAnnotation ann : e.getValue().annotations) {
+        om.writeValue(expected, ann.type);
+        om.writeValue(expected, ann.start);
+        om.writeValue(expected, ann.end);
+        om.writeValue(expected, ann.id);
+        om.writeValue(expected, ann.features);
+      }
+    }
+    ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    new MsgPackFormatSupport().save(bdoc, actual);
+    assertTrue(Arrays.equals(expected.toByteArray(), actual.toByteArray()));
+  }
+
+  /**
+   * Test that loading sm2 restores all values with the expected types.
+   * 
+   * @throws IOException error
+   */
+  public void testLoadSm2Values() throws IOException {
+    BdocDocument bdoc = Utils.makeTestBdoc1();
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    new MsgPackFormatSupport().save(bdoc, baos);
+    BdocDocument bdoc2 = new MsgPackFormatSupport().load_bdoc(
+            new ByteArrayInputStream(baos.toByteArray()));
+    assertEquals(bdoc.text, bdoc2.text);
+    assertEquals(bdoc.name, bdoc2.name);
+    assertEquals(bdoc.offset_type, bdoc2.offset_type);
+    assertEquals(bdoc.features, bdoc2.features);
+    assertEquals(2, bdoc2.annotation_sets.size());
+    BdocAnnotationSet set1 = bdoc2.annotation_sets.get("");
+    assertEquals((Integer)3, set1.next_annid);
+    assertEquals(2, set1.annotations.size());
+    BdocAnnotation ann1 = set1.annotations.get(0);
+    assertEquals("Token", ann1.type);
+    assertEquals((Integer)0, ann1.id);
+    assertEquals(0, ann1.start);
+    assertEquals(1, ann1.end);
+    Map<String, Object> fm = ann1.features;
+    assertEquals(12, fm.get("int"));
+    assertEquals(123456789012L, fm.get("long"));
+    assertEquals(1.5, fm.get("double"));
+    assertEquals(2.5, fm.get("float"));
+    assertEquals(true, fm.get("bool"));
+    assertTrue(fm.containsKey("null"));
+    assertNull(fm.get("null"));
+    assertEquals(bdoc.annotation_sets.get("").annotations.get(0).features.get("string"), fm.get("string"));
+    assertEquals(Arrays.asList(1, "two", 3.0), fm.get("list"));
+    assertEquals(bdoc.annotation_sets.get("").annotations.get(0).features.get("map"), fm.get("map"));
+    assertEquals("c", fm.get("char"));
+    BdocAnnotation ann3 = bdoc2.annotation_sets.get("Set2").annotations.get(0);
+    assertEquals("Person", ann3.type);
+    assertEquals(60, ann3.start);
+    assertEquals(68, ann3.end);
+    assertNull(ann3.features);
+  }
+
+  /**
+   * Test that sm3 loads to the same document as sm2 and is smaller.
+   * 
+   * @throws Exception error
+   */
+  public void testSaveLoadSm3() throws Exception {
+    BdocDocument bdoc = Utils.makeTestBdoc1();
+    BdocAnnotationSet set1 = bdoc.annotation_sets.get("");
+    for(int i = 0; i < 10; i++) {
+      BdocAnnotation ann = new BdocAnnotation();
+      ann.type = "Token";
+      ann.id = 100 + i;
+      ann.start = i;
+      ann.end = i + 1;
+      ann.features = set1.annotations.get(0).features;
+      set1.annotations.add(ann);
+    }
+    ByteArrayOutputStream sm2 = new ByteArrayOutputStream();
+    new Saver().format(Format.MSGPACK).to(sm2).save(bdoc);
+    ByteArrayOutputStream sm3 = new ByteArrayOutputStream();
+    new Saver().format(Format.MSGPACK_SM3).to(sm3).save(bdoc);
+    assertTrue(sm3.size() < sm2.size());
+    // the loader for either format reads both versions
+    BdocDocument bdoc2 = new Loader().format(Format.MSGPACK).
+            from(new ByteArrayInputStream(sm2.toByteArray())).load_bdoc();
+    BdocDocument bdoc3 = new Loader().format(Format.MSGPACK).
+            from(new ByteArrayInputStream(sm3.toByteArray())).load_bdoc();
+    String json2 = new Saver().format(Format.JSON_MAP).asString().save(bdoc2);
+    String json3 = new Saver().format(Format.JSON_MAP).asString().save(bdoc3);
+    assertEquals(json2, json3);
+    BdocAnnotation ann = bdoc3.annotation_sets.get("").annotations.get(2);
+    assertSame(bdoc3.annotation_sets.get("").annotations.get(0).type, ann.type);
+    
+    // saving from a GATE document and loading into a GATE document
+    Document doc = Utils.makeTestDocument1();
+    sm3 = new ByteArrayOutputStream();
+    new Saver().format(Format.MSGPACK_SM3).to(sm3).save(
+            new BdocDocumentBuilder().fromGate(doc));
+    Document doc2 = new Loader().format(Format.MSGPACK_SM3).
+            from(new ByteArrayInputStream(sm3.toByteArray())).
+            load_bdoc(new GateDocumentUpdater(Factory.newDocument("")));
+    assertEquals(Utils.CONTENT1, doc2.getContent().toString());
+    Annotation gann = doc2.getAnnotations().iterator().next();
+    assertEquals("ANN", gann.getType());
+    assertEquals("annfeatvalue", gann.getFeatures().get("ann1feat2"));
+    assertEquals(30L, (long)gann.getStartNode().getOffset());
+  }
+
+  /**
+   * Test that sm4 restores all annotations with their ids and is smaller
+   * than sm3 for dense annotations at large offsets.
+   * 
+   * @throws Exception error
+   */
+  public void testSaveLoadSm4() throws Exception {
+    BdocDocument bdoc = Utils.makeTestBdoc1();
+    StringBuilder sb = new StringBuilder();
+    for(int i = 0; i < 10000; i++) {
+      sb.append("word ");
+    }
+    bdoc.text = sb.toString();
+    BdocAnnotationSet set1 = bdoc.annotation_sets.get("");
+    // added in descending order of start offset, so sm4 has to reorder
+    for(int i = 9999; i >= 5000; i--) {
+      BdocAnnotation ann = new BdocAnnotation();
+      ann.type = (i % 2 == 0) ? "Token" : "Word";
+      ann.id = 1000 + i;
+      ann.start = i * 5;
+      ann.end = i * 5 + 4;
+      set1.annotations.add(ann);
+    }
+    ByteArrayOutputStream sm3 = new ByteArrayOutputStream();
+    new Saver().format(Format.MSGPACK_SM3).to(sm3).save(bdoc);
+    ByteArrayOutputStream sm4 = new ByteArrayOutputStream();
+    new Saver().format(Format.MSGPACK_SM4).to(sm4).save(bdoc);
+    assertTrue(sm4.size() < sm3.size());
+    for(boolean columnar : new boolean[]{false, true}) {
+      BdocDocument bdoc4 = new Loader().format(Format.MSGPACK).columnar(columnar).
+              from(new ByteArrayInputStream(sm4.toByteArray())).load_bdoc();
+      for(BdocAnnotationSet set : bdoc.annotation_sets.values()) {
+        Map<Integer, BdocAnnotation> byId = new HashMap<>();
+        for(BdocAnnotation ann : bdoc4.annotation_sets.get(set.name).annotationList()) {
+          byId.put(ann.id, ann);
+        }
+        assertEquals(set.annotations.size(), byId.size());
+        assertEquals(set.next_annid, bdoc4.annotation_sets.get(set.name).next_annid);
+        for(BdocAnnotation ann : set.annotations) {
+          BdocAnnotation ann4 = byId.get(ann.id);
+          assertEquals(ann.type, ann4.type);
+          assertEquals(ann.start, ann4.start);
+          assertEquals(ann.end, ann4.end);
+          // some feature values come back with a different type, e.g. Float
+          assertEquals(String.valueOf(ann.features), String.valueOf(ann4.features));
+        }
+      }
+    }
+    
+    // saving from a GATE document and loading into a GATE document
+    Document doc = Utils.makeTestDocument1();
+    sm4 = new ByteArrayOutputStream();
+    new Saver().format(Format.MSGPACK_SM4).to(sm4).save(
+            new BdocDocumentBuilder().fromGate(doc));
+    Document doc2 = new Loader().format(Format.MSGPACK_SM4).
+            from(new ByteArrayInputStream(sm4.toByteArray())).
+            load_bdoc(new GateDocumentUpdater(Factory.newDocument("")));
+    Annotation gann = doc2.getAnnotations().iterator().next();
+    assertEquals(30L, (long)gann.getStartNode().getOffset());
+    assertEquals(35L, (long)gann.getEndNode().getOffset());
+  }
+
+  /**
+   * Test saving and loading a ChangeLog in MsgPack format.
+   * 
+   * @throws Exception error
+   */
+  public void testSaveLoadLog() throws Exception {
+    String json = "{\"changes\": [" +
+            "{\"command\": \"doc-feature:set\", \"feature\": \"f1\", \"value\": [1, 2.5]}," +
+            "{\"command\": \"annotation:add\", \"set\": \"S1\", \"start\": 2, " +
+            "\"end\": 8, \"type\": \"Token\", \"features\": {\"a\": \"x\"}, \"id\": 3}," +
+            "{\"command\": \"ann-feature:remove\", \"set\": \"S1\", \"id\": 3, \"feature\": \"a\"}," +
+            "{\"command\": \"name:set\", \"name\": \"doc1\"}," +
+            "{\"command\": \"annotations:clear\", \"set\": \"\"}" +
+            "], \"offset_type\": \"p\"}";
+    ChangeLog log = new Loader().format(Format.JSON_MAP).fromString(json).load_log();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    new Saver().format(Format.MSGPACK).to(bytes).save(log);
+    ChangeLog log2 = new Loader().format(Format.MSGPACK).
+            from(new ByteArrayInputStream(bytes.toByteArray())).load_log();
+    assertEquals("p", log2.offset_type);
+    assertEquals(log.changeMaps().toString(), log2.changeMaps().toString());
+    
+    // the same map packed by some other MsgPack library
+    ObjectMapper omjson = new ObjectMapper();
+    ObjectMapper om = new ObjectMapper(new MessagePackFactory());
+    byte[] packed = om.writeValueAsBytes(omjson.readValue(json, Map.class));
+    ChangeLog log3 = new Loader().format(Format.MSGPACK).
+            from(new ByteArrayInputStream(packed)).load_log();
+    assertEquals(log.changeMaps().toString(), log3.changeMaps().toString());
+    
+    // a ChangeLog which still uses the map representation
+    @SuppressWarnings("unchecked")
+    Map<String, Object> logmap = omjson.readValue(json, Map.class);
+    ChangeLog maplog = ChangeLog.fromMap(logmap);
+    bytes = new ByteArrayOutputStream();
+    new Saver().format(Format.MSGPACK).to(bytes).save(maplog);
+    ChangeLog log4 = new Loader().format(Format.MSGPACK).
+            from(new ByteArrayInputStream(bytes.toByteArray())).load_log();
+    assertEquals(log.changeMaps().toString(), log4.changeMaps().toString());
+  }
+
 }
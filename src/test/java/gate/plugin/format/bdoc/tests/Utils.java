@@ -23,7 +23,14 @@ import gate.AnnotationSet;
 import gate.Document;
 import gate.Factory;
 import gate.creole.ResourceInstantiationException;
+import gate.lib.basicdocument.BdocAnnotation;
+import gate.lib.basicdocument.BdocAnnotationSet;
+import gate.lib.basicdocument.BdocDocument;
 import gate.util.InvalidOffsetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Utils for texting.
@@ -43,4 +50,63 @@ public class Utils {
     anns.add(30L,35L,"ANN", gate.Utils.featureMap("ann1feat1", 1, "ann1feat2", "annfeatvalue"));
     return doc;
   }
+
+  /**
+   * Create a BdocDocument with features of all the commonly used types.
+   * 
+   * @return bdoc document
+   */
+  public static BdocDocument makeTestBdoc1() {
+    BdocDocument bdoc = new BdocDocument();
+    bdoc.text = CONTENT1;
+    bdoc.name = "testbdoc1";
+    bdoc.features = new HashMap<>();
+    bdoc.features.put("docfeat1", 1);
+    bdoc.features.put("docfeat2", "docfeatvalue");
+    bdoc.annotation_sets = new HashMap<>();
+    BdocAnnotationSet set1 = new BdocAnnotationSet();
+    set1.name = "";
+    set1.annotations = new ArrayList<>();
+    set1.next_annid = 3;
+    BdocAnnotation ann1 = new BdocAnnotation();
+    ann1.id = 0;
+    ann1.type = "Token";
+    ann1.start = 0;
+    ann1.end = 1;
+    ann1.features = new HashMap<>();
+    ann1.features.put("int", 12);
+    ann1.features.put("long", 123456789012L);
+    ann1.features.put("double", 1.5);
+    ann1.features.put("float", 2.5f);
+    ann1.features.put("bool", true);
+    ann1.features.put("null", null);
+    ann1.features.put("string", "some \"quoted\" \uD83D\uDCA9 string");
+    ann1.features.put("list", Arrays.asList(1, "two", 3.0));
+    Map<String, Object> nested = new HashMap<>();
+    nested.put("a", 1);
+    nested.put("b", Arrays.asList("x", "y"));
+    ann1.features.put("map", nested);
+    ann1.features.put("char", 'c');
+    set1.annotations.add(ann1);
+    BdocAnnotation ann2 = new BdocAnnotation();
+    ann2.id = 2;
+    ann2.type = "Sentence";
+    ann2.start = 0;
+    ann2.end = 30;
+    ann2.features = new HashMap<>();
+    set1.annotations.add(ann2);
+    bdoc.annotation_sets.put(set1.name, set1);
+    BdocAnnotationSet set2 = new BdocAnnotationSet();
+    set2.name = "Set2";
+    set2.annotations = new ArrayList<>();
+    set2.next_annid = 4;
+    BdocAnnotation ann3 = new BdocAnnotation();
+    ann3.id = 3;
+    ann3.type = "Person";
+    ann3.start = 60;
+    ann3.end = 68;
+    set2.annotations.add(ann3);
+    bdoc.annotation_sets.put(set2.name, set2);
+    return bdoc;
+  }
 }